@@ -266,9 +266,9 @@ public class BoltArmCommandInterpreter implements LCMSubscriber
                 bcmd.xyz = LinAlg.resize(cmd.dest, 3);
             } else {
                 if (debug) {
-                    dthread.render(info.points);
+                    dthread.render(info.getPoints());
                 }
-                ArrayList<double[]> points = k2wPointAlign(info.points);
+                ArrayList<double[]> points = k2wPointAlign(info.getPoints());
                 bcmd.xyz = getCentroidXYZ(flattenPoints(points));
                 bcmd.xyz[2] = BoltUtil.getZAt(points, bcmd.xyz) + pointOffset;//getMax(points, 2) + pointOffset;
             }
@@ -302,9 +302,9 @@ public class BoltArmCommandInterpreter implements LCMSubscriber
                 return null;    // There is no safe way to grab nothing
             } else {
                 if (debug) {
-                    dthread.render(info.points);
+                    dthread.render(info.getPoints());
                 }
-                ArrayList<double[]> wPoints = k2wPointAlign(info.points);
+                ArrayList<double[]> wPoints = k2wPointAlign(info.getPoints());
                 ArrayList<double[]> xyPoints = flattenPoints(wPoints);
                 double[] uxy = getMeanXY(xyPoints);
                 bcmd.xyz = LinAlg.resize(uxy, 3);
@@ -93,6 +93,7 @@ public class Bolt extends JFrame implements LCMSubscriber
         // Initialize classifier manager
         classifierManager = ClassifierManager.getSingleton();
         classifierManager.addClassifiers(config); // XXX Auto-coded config stuff here. Meh
+        Features.loadConfig(config);
 
         if (opts.getString("backup") != null) {
             try {
@@ -121,6 +122,7 @@ public class Bolt extends JFrame implements LCMSubscriber
 
 
         if(opts.getBoolean("kinect")){
+        	Segment.getSingleton().loadConfig(config);
         	camera = new KinectCamera(simulator.getVisWorld()); // Lauren
         	kinectView = new KinectView();
             // XXX We'd like to remove this middleman to the arm
@@ -234,6 +236,9 @@ public class Bolt extends JFrame implements LCMSubscriber
                         ArrayList<Double> features = obj.getFeatures(cat);
                         if(features != null){
                             classifierManager.addDataPoint(cat, features, tl.label);
+                        } else {
+                            System.err.println("ERR: No "+cat+" features for object "+tl.id+
+                                               ", dropping label "+tl.label);
                         }
                     }
                 }
@@ -13,7 +13,9 @@ import lcm.lcm.LCM;
 import lcm.lcm.LCMDataInputStream;
 import lcm.lcm.LCMSubscriber;
 
+import abolt.kinect.KUtils;
 import abolt.kinect.KinectCamera;
+import abolt.kinect.PointCloudFrame;
 import abolt.lcmtypes.kinect_status_t;
 import abolt.objects.BoltObject;
 import abolt.objects.BoltObjectManager;
@@ -98,18 +100,21 @@ public class KinectView extends JFrame implements LCMSubscriber{
     
     private void redrawKinectData(){
     	VisWorld.Buffer buffer = visWorld.getBuffer("kinect");
-    	ArrayList<double[]> points = KinectCamera.extractPointCloudData(ks);
-		if(points != null && points.size() > 0){
+    	PointCloudFrame frame = KinectCamera.extractPointCloudFrame(ks);
+    	KUtils.computeWorldCoordinates(frame);
+		if(frame.numValid() > 0){
 			VisColorData colors = new VisColorData();
 			VisVertexData vertexData = new VisVertexData();
-			for(int i = 0; i < points.size(); i++){
-				double[] pt = Bolt.getCamera().getWorldCoords(points.get(i));
-				vertexData.add(new double[]{pt[0], pt[1], pt[2]});
-    			colors.add((int)points.get(i)[3]);
+			for(int i = 0; i < frame.size(); i++){
+				if(!frame.isValid(i))
+					continue;
+				vertexData.add(new double[]{frame.wx[i], frame.wy[i], frame.wz[i]});
+    			colors.add(frame.rgb[i]);
 			}
 			VzPoints visPts = new VzPoints(vertexData, new VzPoints.Style(colors, 2));
 			buffer.addBack(visPts);
 		}
+		frame.release();
 		buffer.swap();
     }
 }
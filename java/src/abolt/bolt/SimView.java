@@ -3,6 +3,8 @@ package abolt.bolt;
 import java.util.ArrayList;
 
 import abolt.collision.ShapeToVisObject;
+import abolt.kinect.ObjectInfo;
+import abolt.kinect.PointCloudFrame;
 import abolt.objects.*;
 import april.vis.*;
 import april.vis.VisWorld.Buffer;
@@ -15,14 +17,20 @@ public interface SimView {
 			BoltObjectManager objManager = BoltObjectManager.getSingleton();
 	    	synchronized(objManager.objects){
 				for(BoltObject obj : objManager.objects.values()){
-					ArrayList<double[]> points = obj.getInfo().points;
-					if(points != null && points.size() > 0){
+					ObjectInfo info = obj.getInfo();
+					PointCloudFrame frame = info.frame;
+					if(frame != null && info.numPoints > 0){
 		    			VisColorData colors = new VisColorData();
 		    			VisVertexData vertexData = new VisVertexData();
-		    			for(int i = 0; i < points.size(); i++){
-		    				double[] pt = Bolt.getCamera().getWorldCoords(points.get(i));
-		    				vertexData.add(new double[]{pt[0], pt[1], pt[2]});
-			    			colors.add((int)points.get(i)[3]);
+		    			for(int i = 0; i < info.numPoints; i++){
+		    				int j = info.indices[i];
+		    				if(frame.hasWorld){
+		    					vertexData.add(new double[]{frame.wx[j], frame.wy[j], frame.wz[j]});
+		    				} else {
+		    					double[] pt = Bolt.getCamera().getWorldCoords(new double[]{frame.x[j], frame.y[j], frame.z[j]});
+		    					vertexData.add(new double[]{pt[0], pt[1], pt[2]});
+		    				}
+			    			colors.add(frame.rgb[j]);
 		    			}
 		    			VzPoints visPts = new VzPoints(vertexData, new VzPoints.Style(colors, 2));
 		    			buffer.addBack(visPts);
@@ -2,12 +2,14 @@ package abolt.classify;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import april.config.*;
 import april.util.*;
 
 import abolt.classify.Features.FeatureCategory;
 import abolt.objects.*;
+import abolt.kinect.ObjectInfo;
 import abolt.lcmtypes.*;
 
 /**
@@ -72,6 +74,10 @@ public class ClassifierManager {
     // The classfiers
 	private HashMap<FeatureCategory, IClassifier> classifiers;
 
+    // Bumped whenever the classifiers' training data changes, so cached
+    // classifications (see ObjectInfo.getClassifications) can be dropped
+    private AtomicLong modelVersion = new AtomicLong();
+
     public ClassifierManager()
     {
     }
@@ -110,6 +116,13 @@ public class ClassifierManager {
     
     public void addClassifier(FeatureCategory cat, IClassifier classifier){
     	classifiers.put(cat, classifier);
+        modelVersion.incrementAndGet();
+    }
+
+    /** Changes every time the training data of any classifier changes **/
+    public long getModelVersion()
+    {
+        return modelVersion.get();
     }
 
 	public Classifications classify(FeatureCategory cat, BoltObject obj){
@@ -118,12 +131,32 @@ public class ClassifierManager {
 		if(features == null || classifier == null){
 			return null;
 		}
-        	Classifications classifications;
+		return classify(cat, obj, classifier, features);
+	}
+
+    /** Classify an object's features, reusing the classification cached on
+     *  its ObjectInfo if the models have not changed since it was made. **/
+    private Classifications classify(FeatureCategory cat, BoltObject obj,
+                                     IClassifier classifier, ArrayList<Double> features)
+    {
+        ObjectInfo info = obj.getInfo();
+        long version = modelVersion.get();
+        if(info != null){
+            Classifications cached = info.getClassifications(cat, version);
+            if(cached != null)
+                return cached;
+        }
+        Classifications classifications;
 		synchronized (stateLock) {
 			classifications = classifier.classify(features);
 		}
+        // Cached classifications are shared by every later reader, so they
+        // are sorted once here rather than by whoever reads them
+        classifications.sortLabels();
+        if(info != null)
+            info.putClassifications(cat, version, classifications);
 		return classifications;
-	}
+    }
 
 	public void addDataPoint(FeatureCategory cat, ArrayList<Double> features, String label){
 		IClassifier classifier = classifiers.get(cat);
@@ -132,6 +165,7 @@ public class ClassifierManager {
             StackEntry entry = new StackEntry(point, cat, "ADD");
 			classifier.add(point);
             undoStack.add(entry);
+            modelVersion.incrementAndGet();
 		}
 	}
 
@@ -141,6 +175,7 @@ public class ClassifierManager {
 				classifier.clearData();
 			}
 		}
+        modelVersion.incrementAndGet();
 	}
 
 	public void reloadData(){
@@ -150,6 +185,7 @@ public class ClassifierManager {
 				classifier.loadData();
 			}
 		}
+        modelVersion.incrementAndGet();
 	}
 
     public boolean hasUndo()
@@ -173,6 +209,7 @@ public class ClassifierManager {
             if (entry.action.equals("ADD")) {
                 classifiers.get(entry.cat).removeLast();
                 redoStack.add(entry);
+                modelVersion.incrementAndGet();
             } else {
                 System.err.println("ERR: Unhandled undo case - "+entry.action);
             }
@@ -190,6 +227,7 @@ public class ClassifierManager {
             if (entry.action.equals("ADD")) {
                 classifiers.get(entry.cat).add(entry.point);
                 undoStack.add(entry);
+                modelVersion.incrementAndGet();
             } else {
                 System.err.println("ERR: Unhandled redo case - "+entry.action);
             }
@@ -279,6 +317,7 @@ public class ClassifierManager {
             ins.blockEnd();
 
             ins.close();
+            modelVersion.incrementAndGet();
         }
     }
 
@@ -328,8 +367,7 @@ public class ClassifierManager {
                     	cat_dat.num_features = 0;
                     	cat_dat.features = new double[0];
                     }
-                    Classifications cs = classifier.classify(features);
-                    cs.sortLabels();    // Just to be nice
+                    Classifications cs = classify(fc, bo, classifier, features);
                     cat_dat.len = cs.size();
                     cat_dat.confidence = new double[cat_dat.len];
                     cat_dat.label = new String[cat_dat.len];
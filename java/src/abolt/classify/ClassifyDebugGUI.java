@@ -102,9 +102,12 @@ public class ClassifyDebugGUI
                 return;
             }
 
-            ClassifierManager.getSingleton().addDataPoint(cat,
-                                                          obj.getFeatures(cat),
-                                                          label);
+            ArrayList<Double> features = obj.getFeatures(cat);
+            if (features == null) {
+                System.err.println("ERR: No "+cat+" features for object "+repID);
+                return;
+            }
+            ClassifierManager.getSingleton().addDataPoint(cat, features, label);
         }
     }
 }
@@ -4,23 +4,64 @@ import java.awt.Color;
 import java.util.ArrayList;
 
 import abolt.kinect.ObjectInfo;
+import abolt.kinect.PointCloudFrame;
+import abolt.kinect.PointStats;
 
 /**
  * @author Aaron
  * @purpose Contains methods for extracting color features from an object or point cloud
  */
 public class ColorFeatureExtractor{
+	/** Read straight from the object's running statistics, which give the
+	 *  same values as scanning its points. **/
 	public static ArrayList<Double> getFeatures(ObjectInfo object) {
-		return getFeatures(object.points);
+		ArrayList<Double> features = new ArrayList<Double>();
+		FEUtil.addArray(features, object.stats.getColorMean());
+		FEUtil.addArray(features, object.stats.getHSVMean());
+		return features;
+	}
+
+	public static ArrayList<Double> getFeatures(PointCloudFrame frame, int[] indices, int n) {
+		return getFeatures(colorStats(frame, indices, n));
 	}
 
 	public static ArrayList<Double> getFeatures(ArrayList<double[]> points) {
+		return getFeatures(colorStats(points));
+	}
+
+	private static ArrayList<Double> getFeatures(PointStats stats) {
 		ArrayList<Double> features = new ArrayList<Double>();
-		FEUtil.addArray(features, avgRGB(points));
-		FEUtil.addArray(features, avgHSV(points));
+		FEUtil.addArray(features, stats.getColorMean());
+		FEUtil.addArray(features, stats.getHSVMean());
 		return features;
 	}
-	
+
+	/**
+	 * Gather RGB and HSV sums and squares for a group of pixels in a single
+	 * pass, with hue and saturation from HSVTable. Pixels are assumed to
+	 * have four coordinates, (x, y, z, rgb).
+	 **/
+	public static PointStats colorStats(ArrayList<double[]> points)
+	{
+		PointStats stats = new PointStats();
+		for (double[] p : points) {
+			stats.addColor((int) p[3]);
+		}
+		stats.n = points.size();
+		return stats;
+	}
+
+	/** Same as colorStats, but over the first n indices of a frame **/
+	public static PointStats colorStats(PointCloudFrame frame, int[] indices, int n)
+	{
+		PointStats stats = new PointStats();
+		for (int i = 0; i < n; i++) {
+			stats.addColor(frame.rgb[indices[i]]);
+		}
+		stats.n = n;
+		return stats;
+	}
+
 	/**
 	 * Find the average red, green, and blue values for a group of pixels.
 	 * pixels are assumed to have four coordinates, (x, y, z, rgb).
@@ -29,34 +70,26 @@ public class ColorFeatureExtractor{
 	 **/
 	public static double[] avgRGB(ArrayList<double[]> points)
     {
-		double[] avg = new double[3];
-		for (double[] p : points) {
-			Color bgr = new Color((int) p[3]);
-			avg[2] += bgr.getRed();
-			avg[1] += bgr.getGreen();
-			avg[0] += bgr.getBlue();
-		}
-		FEUtil.divideEquals(avg, 255.0 * points.size());
-		return avg;
+		return colorStats(points).getColorMean();
+	}
+
+	/** Same as avgRGB, but over the first n indices of a frame **/
+	public static double[] avgRGB(PointCloudFrame frame, int[] indices, int n)
+    {
+		return colorStats(frame, indices, n).getColorMean();
 	}
 
 	/**
-	 * Calculate the variance of red, green, blue values in a group of pixels.
+	 * Calculate the variance of red, green, blue values in a group of pixels,
+	 * on the same [0, 1] scale as avgRGB.
 	 * Pixels are assumed to have four coordinates: (x, y, z, rgb).
 	 **
 	 * @return [r,g,b,] variances
 	 **/
 	public static double[] varRGB(ArrayList<double[]> points)
     {
-		double[] avg = avgRGB(points);
-		double[] var = new double[3];
-		for (double[] p : points) {
-			Color bgr = new Color((int) p[3]);
-			var[2] += (bgr.getRed() - avg[0]) * (bgr.getRed() - avg[0]);
-			var[1] += (bgr.getGreen() - avg[1]) * (bgr.getGreen() - avg[1]);
-			var[0] += (bgr.getBlue() - avg[2]) * (bgr.getBlue() - avg[2]);
-		}
-		FEUtil.divideEquals(var, points.size());
+		double[] var = colorStats(points).getColorVariance();
+		FEUtil.divideEquals(var, 255.0 * 255.0);
 		return var;
 	}
 
@@ -68,17 +101,13 @@ public class ColorFeatureExtractor{
 	 **/
 	public static double[] avgHSV(ArrayList<double[]> points)
     {
-		double[] avg = new double[3];
-		float[] hsv = new float[3];
-		for (double[] p : points) {
-			Color rgb = new Color((int) p[3]);
-			Color.RGBtoHSB(rgb.getBlue(), rgb.getGreen(), rgb.getRed(), hsv);
-			for (int i = 0; i < avg.length; i++) {
-				avg[i] += (double) hsv[i];
-			}
-		}
-		FEUtil.divideEquals(avg, points.size());
-		return avg;
+		return colorStats(points).getHSVMean();
+	}
+
+	/** Same as avgHSV, but over the first n indices of a frame **/
+	public static double[] avgHSV(PointCloudFrame frame, int[] indices, int n)
+    {
+		return colorStats(frame, indices, n).getHSVMean();
 	}
 
 	/**
@@ -89,19 +118,7 @@ public class ColorFeatureExtractor{
 	 **/
 	public static double[] varHSV(ArrayList<double[]> points)
     {
-		double[] avg = avgHSV(points);
-		double[] var = new double[3];
-		float[] hsvV = new float[3];
-		for (double[] p : points) {
-			Color rgb = new Color((int) p[3]);
-			Color.RGBtoHSB(rgb.getBlue(), rgb.getGreen(), rgb.getRed(), hsvV);
-			for (int i = 0; i < avg.length; i++) {
-				double hsv = (double) hsvV[i];
-				var[i] += (hsv - avg[i]) * (hsv - avg[i]);
-			}
-		}
-		FEUtil.divideEquals(var, points.size());
-		return var;
+		return colorStats(points).getHSVVariance();
 	}
 	
 	public static Color getColorFromFeatures(ArrayList<Double> colorFeatures){
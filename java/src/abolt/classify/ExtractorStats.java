@@ -0,0 +1,71 @@
+package abolt.classify;
+
+/**
+ * @purpose Latency accounting for one feature extractor (or shared input).
+ *          Keeps a histogram of call times in power of two buckets of
+ *          microseconds and a moving average, which the budget checks in
+ *          Features are made against.
+ */
+public class ExtractorStats {
+	final static int BUCKETS = 24;		// Up to 2^24 us, about 17 s
+	final static double SMOOTHING = .1;	// Weight of the newest call in the average
+
+	private String name;
+	private long[] histogram = new long[BUCKETS];
+	private long count = 0;
+	private long totalNanos = 0;
+	private double averageMillis = 0;
+
+	public ExtractorStats(String name) {
+		this.name = name;
+	}
+
+	public synchronized void record(long nanos) {
+		long micros = nanos / 1000;
+		int bucket = 63 - Long.numberOfLeadingZeros(Math.max(micros, 1));
+		histogram[Math.min(bucket, BUCKETS - 1)]++;
+		double millis = nanos / 1000000.0;
+		averageMillis = (count == 0) ? millis : averageMillis + SMOOTHING*(millis - averageMillis);
+		count++;
+		totalNanos += nanos;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	/** Moving average of recent calls [ms] **/
+	public synchronized double getAverageMillis() {
+		return averageMillis;
+	}
+
+	/** Mean over every call [ms] **/
+	public synchronized double getMeanMillis() {
+		return (count == 0) ? 0 : totalNanos / (1000000.0 * count);
+	}
+
+	/** Upper edge of the histogram bucket holding the p'th fraction of
+	 *  calls, e.g. .95 for the 95th percentile [ms] **/
+	public synchronized double getPercentileMillis(double p) {
+		long target = (long) Math.ceil(p * count);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += histogram[b];
+			if (seen >= target && seen > 0) {
+				return (1L << (b + 1)) / 1000.0;
+			}
+		}
+		return 0;
+	}
+
+	/** Number of calls in each bucket; bucket b holds calls of [2^b, 2^(b+1)) us **/
+	public synchronized long[] getHistogram() {
+		return histogram.clone();
+	}
+
+	public synchronized String toString() {
+		return String.format("%s: %d calls, mean %.2f ms, avg %.2f ms, p50 < %.2f ms, p95 < %.2f ms",
+				name, count, getMeanMillis(), averageMillis,
+				getPercentileMillis(.5), getPercentileMillis(.95));
+	}
+}
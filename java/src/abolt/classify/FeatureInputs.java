@@ -0,0 +1,66 @@
+package abolt.classify;
+
+import java.awt.image.BufferedImage;
+
+import abolt.kinect.ObjectInfo;
+import abolt.kinect.PointSubsampler;
+
+/**
+ * @purpose Intermediate results shared by the feature extractors run on one
+ *          object, each computed the first time it is asked for. One
+ *          FeatureInputs should only be used by one thread, since the
+ *          projected image lives in a per-thread buffer.
+ */
+public class FeatureInputs {
+	private ObjectInfo object;
+	private BufferedImage image = null;
+	private int[] sample = null;
+	private boolean sampled = false;
+
+	public FeatureInputs(ObjectInfo object) {
+		this.object = object;
+	}
+
+	/** Compute every input some extractor depends on **/
+	public void prepare(IFeatureExtractor.Input[] inputs) {
+		for (IFeatureExtractor.Input input : inputs) {
+			switch (input) {
+			case IMAGE:
+				getImage();
+				break;
+			case SAMPLE:
+				getSample();
+				break;
+			}
+		}
+	}
+
+	/** The object projected into the camera image, drawn from the sample
+	 *  (see getSample) if points are being subsampled. It is drawn in this
+	 *  thread's scratch buffer (see ObjectInfo.getScratchImage), so it is
+	 *  only good until the next image is projected on this thread. **/
+	public BufferedImage getImage() {
+		if (image == null) {
+			int[] sample = getSample();
+			long start = System.nanoTime();
+			image = object.getScratchImage(sample);
+			Features.recordInput(IFeatureExtractor.Input.IMAGE, System.nanoTime() - start);
+		}
+		return image;
+	}
+
+	/** Indices of the object's points picked by Features.getSubsampler(),
+	 *  or null if points are not being subsampled **/
+	public int[] getSample() {
+		if (!sampled) {
+			sampled = true;
+			PointSubsampler sampler = Features.getSubsampler();
+			if (sampler.getMode() != PointSubsampler.Mode.NONE) {
+				long start = System.nanoTime();
+				sample = sampler.sample(object.frame, object.indices, object.numPoints);
+				Features.recordInput(IFeatureExtractor.Input.SAMPLE, System.nanoTime() - start);
+			}
+		}
+		return sample;
+	}
+}
@@ -0,0 +1,92 @@
+package abolt.classify;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import abolt.classify.Features.FeatureCategory;
+import abolt.kinect.ObjectInfo;
+
+/**
+ * @purpose Computes every feature category of every object in a frame once
+ *          tracking has decided which objects they are, spread over a fixed
+ *          number of worker threads. Features end up cached on the
+ *          ObjectInfo, so the classifiers, the renderer and training all read
+ *          the same precomputed values instead of computing them on whichever
+ *          thread asks first. Features an object inherited from its track are
+ *          not recomputed. The categories are those with an extractor
+ *          registered in Features, where a disabled one only runs every so
+ *          often to see if it fits its budget again.
+ */
+public class FeatureStage
+{
+    final static int QUEUE_SIZE = 64;
+
+    static FeatureStage singleton = null;
+    public static synchronized FeatureStage getSingleton()
+    {
+        if (singleton == null) {
+            singleton = new FeatureStage(Runtime.getRuntime().availableProcessors());
+        }
+        return singleton;
+    }
+
+    private ExecutorService executor;
+
+    private FeatureStage(int threads)
+    {
+        ThreadFactory factory = new ThreadFactory() {
+            int count = 0;
+            public synchronized Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "feature-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        // When the queue is full the submitting thread runs the task itself,
+        // so a burst of objects can't pile up work without bound
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                                          factory, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /** Compute the features of every object, returning once all are done **/
+    public void extract(Collection<ObjectInfo> objects)
+    {
+        final FeatureCategory[] cats = Features.getCategories();
+        if (objects.size() <= 1) {
+            for (ObjectInfo info : objects) {
+                extract(info, cats);
+            }
+            return;
+        }
+
+        // One task per object, so its extractors share intermediate results
+        // and it computes its features under its own lock anyway
+        ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>(objects.size());
+        for (final ObjectInfo info : objects) {
+            tasks.add(Executors.callable(new Runnable() {
+                public void run()
+                {
+                    extract(info, cats);
+                }
+            }));
+        }
+        try {
+            for (Future<Object> f : executor.invokeAll(tasks)) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void extract(ObjectInfo info, FeatureCategory[] cats)
+    {
+        info.computeFeatures(cats);
+    }
+}
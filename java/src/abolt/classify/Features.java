@@ -1,19 +1,26 @@
 package abolt.classify;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import april.config.Config;
+
 import abolt.kinect.ObjectInfo;
+import abolt.kinect.PointSubsampler;
 import abolt.lcmtypes.category_t;
 
 /**
  * @author aaron
  * @purpose Contains mappings between a FeatureCategory and the LCM category_t
- *          enum and a general interface for extracting features from a point
- *          cloud
+ *          enum, and the registry of the extractor used for each category
+ *          along with what each one costs
  */
 public class Features {
 	public enum FeatureCategory {
@@ -51,22 +58,233 @@ public class Features {
 		return lcmToFeatureCat.get(lcmCat);
 	}
 
-	// Mapping from the FeatureCategory to a FeatureExtractor
+	public enum OverBudget {
+		NONE,		// Only keep track of the cost
+		DISABLE,	// Stop extracting the category
+		DOWNSAMPLE	// Only recompute every few frames of an object's track
+	}
+
+	final static int MIN_CALLS = 20;	// Calls timed before budgets are enforced
+	final static int PROBE_INTERVAL = 100;	// Calls a disabled extractor skips between runs
+
+	/** An extractor and what it has cost so far **/
+	static class Registration {
+		FeatureCategory cat;
+		IFeatureExtractor extractor;
+		ExtractorStats stats;
+		double budgetMillis = 0;	// No budget if 0
+		OverBudget policy = OverBudget.NONE;
+		int downsample = 4;
+		volatile boolean enabled = true;
+		volatile boolean overBudget = false;
+		AtomicInteger skipped = new AtomicInteger();
+
+		Registration(FeatureCategory cat, IFeatureExtractor extractor) {
+			this.cat = cat;
+			this.extractor = extractor;
+			this.stats = new ExtractorStats(cat.toString());
+		}
+
+		/** Whether to run the extractor for this call. A disabled extractor
+		 *  still runs every PROBE_INTERVAL calls, so it keeps being timed and
+		 *  is enabled again once it fits its budget. **/
+		boolean shouldRun() {
+			return enabled || skipped.incrementAndGet() % PROBE_INTERVAL == 0;
+		}
+
+		void record(long nanos) {
+			stats.record(nanos);
+			if (budgetMillis <= 0 || stats.getCount() < MIN_CALLS) {
+				return;
+			}
+			double avg = stats.getAverageMillis();
+			boolean over = avg > budgetMillis;
+			if (policy == OverBudget.DISABLE && over && enabled) {
+				enabled = false;
+				System.err.printf("ATTN: Disabling %s features, averaging %.2f ms against a %.2f ms budget\n",
+						cat, avg, budgetMillis);
+			} else if (policy == OverBudget.DISABLE && !over && !enabled) {
+				enabled = true;
+				System.err.printf("ATTN: Enabling %s features again, averaging %.2f ms against a %.2f ms budget\n",
+						cat, avg, budgetMillis);
+			} else if (policy == OverBudget.DOWNSAMPLE && over != overBudget) {
+				overBudget = over;
+				System.err.printf("ATTN: %s features %s, averaging %.2f ms against a %.2f ms budget\n",
+						cat, over ? "downsampled to every " + downsample + " frames" : "back to every frame",
+						avg, budgetMillis);
+			}
+		}
+	}
+
+	// Registered extractors, in the order the categories are declared
+	private static Map<FeatureCategory, Registration> extractors =
+		Collections.synchronizedMap(new EnumMap<FeatureCategory, Registration>(FeatureCategory.class));
+
+	// Cost of the shared inputs
+	private static EnumMap<IFeatureExtractor.Input, ExtractorStats> inputStats;
+	static {
+		inputStats = new EnumMap<IFeatureExtractor.Input, ExtractorStats>(IFeatureExtractor.Input.class);
+		for (IFeatureExtractor.Input input : IFeatureExtractor.Input.values()) {
+			inputStats.put(input, new ExtractorStats(input.toString()));
+		}
+	}
+
+	static {
+		register(FeatureCategory.COLOR, new IFeatureExtractor() {
+			public Input[] getDependencies() {
+				return new Input[0];
+			}
+			public ArrayList<Double> getFeatures(ObjectInfo object, FeatureInputs inputs) {
+				return ColorFeatureExtractor.getFeatures(object);
+			}
+			public ArrayList<Double> getFeatures(ArrayList<double[]> points) {
+				return ColorFeatureExtractor.getFeatures(points);
+			}
+		});
+		register(FeatureCategory.SHAPE, new IFeatureExtractor() {
+			public Input[] getDependencies() {
+				return new Input[] { Input.SAMPLE, Input.IMAGE };
+			}
+			public ArrayList<Double> getFeatures(ObjectInfo object, FeatureInputs inputs) {
+				return ShapeFeatureExtractor.getFeatures(inputs.getImage());
+			}
+			public ArrayList<Double> getFeatures(ArrayList<double[]> points) {
+				return ShapeFeatureExtractor.getFeatures(points);
+			}
+		});
+		register(FeatureCategory.SIZE, new IFeatureExtractor() {
+			public Input[] getDependencies() {
+				return new Input[0];
+			}
+			public ArrayList<Double> getFeatures(ObjectInfo object, FeatureInputs inputs) {
+				return SizeFeatureExtractor.getFeatures(object);
+			}
+			public ArrayList<Double> getFeatures(ArrayList<double[]> points) {
+				return SizeFeatureExtractor.getFeatures(points);
+			}
+		});
+	}
+
+	// Picks the points the shape image is drawn from
+	private static volatile PointSubsampler subsampler =
+		new PointSubsampler(PointSubsampler.Mode.NONE, 0, 0);
+
+	public static PointSubsampler getSubsampler() {
+		return subsampler;
+	}
+
+	public static void setSubsampler(PointSubsampler sampler) {
+		subsampler = sampler;
+	}
+
+	/** Use extractor for a category, replacing any registered before **/
+	public static void register(FeatureCategory cat, IFeatureExtractor extractor) {
+		extractors.put(cat, new Registration(cat, extractor));
+	}
+
+	public static void unregister(FeatureCategory cat) {
+		extractors.remove(cat);
+	}
+
+	/**
+	 * Read the budget of each registered extractor from the "features"
+	 * block of a config, e.g. features.shape.budget = 5.0 (average ms per
+	 * object), features.shape.over_budget = "downsample" (or "disable",
+	 * "none") and features.shape.downsample = 4 (frames). Also reads how
+	 * points are subsampled (see PointSubsampler.fromConfig).
+	 */
+	public static void loadConfig(Config config) {
+		subsampler = PointSubsampler.fromConfig(config);
+		synchronized (extractors) {
+			for (Registration r : extractors.values()) {
+				String prefix = "features." + r.cat.toString().toLowerCase();
+				r.budgetMillis = config.getDouble(prefix + ".budget", 0);
+				r.policy = OverBudget.valueOf(config.getString(prefix + ".over_budget", "none").toUpperCase());
+				r.downsample = Math.max(1, config.getInt(prefix + ".downsample", r.downsample));
+			}
+		}
+	}
+
+	/** Categories with a registered extractor, including disabled ones,
+	 *  which getFeatures only runs now and then **/
+	public static FeatureCategory[] getCategories() {
+		synchronized (extractors) {
+			return extractors.keySet().toArray(new FeatureCategory[extractors.size()]);
+		}
+	}
+
+	/** How many frames of a track the features of a category should be
+	 *  reused for: 1 unless the extractor is downsampled for being over
+	 *  budget. **/
+	public static int getInterval(FeatureCategory cat) {
+		Registration r = extractors.get(cat);
+		if (r == null || !r.overBudget) {
+			return 1;
+		}
+		return r.downsample;
+	}
+
+	public static ExtractorStats getStats(FeatureCategory cat) {
+		Registration r = extractors.get(cat);
+		return (r == null) ? null : r.stats;
+	}
+
+	static void recordInput(IFeatureExtractor.Input input, long nanos) {
+		inputStats.get(input).record(nanos);
+	}
+
+	/** One line per extractor and shared input describing what it costs **/
+	public static String getStatsReport() {
+		StringBuilder sb = new StringBuilder();
+		synchronized (extractors) {
+			for (Registration r : extractors.values()) {
+				sb.append(r.stats).append(r.enabled ? "" : " (disabled)")
+				  .append(r.overBudget ? " (downsampled)" : "").append("\n");
+			}
+		}
+		for (ExtractorStats stats : inputStats.values()) {
+			sb.append("input ").append(stats).append("\n");
+		}
+		return sb.toString();
+	}
+
 	public static ArrayList<Double> getFeatures(FeatureCategory cat,
 			ObjectInfo object) {
-		return getFeatures(cat, object.points);
+		return getFeatures(cat, object, null);
+	}
+
+	/** Features of an object, reading intermediate results from inputs (which
+	 *  may be null) so extractors run on the same object can share them.
+	 *  Null if there is no extractor for the category, or it is disabled for
+	 *  being over budget and not due to be timed again. An extractor is
+	 *  charged for the inputs it is the first to ask for. Only the feature
+	 *  stage (ObjectInfo.computeFeatures) should call this; everything else
+	 *  reads the features it stored on the object. **/
+	public static ArrayList<Double> getFeatures(FeatureCategory cat,
+			ObjectInfo object, FeatureInputs inputs) {
+		Registration r = extractors.get(cat);
+		if (r == null || !r.shouldRun()) {
+			return null;
+		}
+		long start = System.nanoTime();
+		if (inputs == null) {
+			inputs = new FeatureInputs(object);
+		}
+		inputs.prepare(r.extractor.getDependencies());
+		ArrayList<Double> features = r.extractor.getFeatures(object, inputs);
+		r.record(System.nanoTime() - start);
+		return features;
 	}
 
 	public static ArrayList<Double> getFeatures(FeatureCategory cat,
 			ArrayList<double[]> points) {
-		switch (cat) {
-		case COLOR:
-			return ColorFeatureExtractor.getFeatures(points);
-		case SIZE:
-			return SizeFeatureExtractor.getFeatures(points);
-		case SHAPE:
-			return ShapeFeatureExtractor.getFeatures(points);
+		Registration r = extractors.get(cat);
+		if (r == null) {
+			return null;
 		}
-		return null;
+		long start = System.nanoTime();
+		ArrayList<Double> features = r.extractor.getFeatures(points);
+		r.record(System.nanoTime() - start);
+		return features;
 	}
 }
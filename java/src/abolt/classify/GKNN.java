@@ -1,6 +1,7 @@
 package abolt.classify;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 import april.jmat.*;
@@ -11,33 +12,40 @@ import abolt.util.*;
 /** K-nearest neighbor classifier using a guassian-like
  *  weighting function when considering the importance
  *  of the neighbors
+ *
+ *  Neighbors are found with a KDTree over the points, plus a linear scan
+ *  of the points added since the tree was built. Once too many points
+ *  have piled up outside the tree, a new one is built in the background
+ *  and swapped in when it is done.
  */
 public class GKNN implements IClassifier
 {
+    // Points outside the tree before it is worth rebuilding, in addition
+    // to a quarter of the points in it
+    final static int REBUILD_SLACK = 32;
+
     ArrayList<CPoint> points = new ArrayList<CPoint>();
 
-    class CPointComparator implements Comparator<CPoint>
-    {
-        double[] goal;
+    // The first "indexed" points are in the tree as they are in the list.
+    // Points after those, or removed and replaced since the tree was
+    // built, are scanned.
+    private KDTree tree = null;
+    private int indexed = 0;
 
-        public CPointComparator(double[] goal_)
-        {
-            goal = LinAlg.copy(goal_);
-        }
+    // State of the rebuild in progress. Bumping the generation makes the
+    // tree being built be thrown away when it finishes.
+    private boolean rebuilding = false;
+    private int generation = 0;
+    private int lowWater = 0;       // Fewest points since the rebuild started
 
-        public int compare(CPoint a, CPoint b)
+    private static ExecutorService rebuilder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r)
         {
-            double da = LinAlg.distance(a.coords, goal);
-            double db = LinAlg.distance(b.coords, goal);
-
-            if (da > db)
-                return 1;
-            else if (da < db)
-                return -1;
-            else
-                return 0;
+            Thread t = new Thread(r, "gknn-rebuild");
+            t.setDaemon(true);
+            return t;
         }
-    }
+    });
 
     // Number of nearest neighbors
     int k;
@@ -68,11 +76,11 @@ public class GKNN implements IClassifier
         add(dfeatures, label);
     }
 
-    public void add(double[] features, String label)
+    synchronized public void add(double[] features, String label)
     {
         if (label == null)
             return;
-        points.add(new CPoint(label, features));
+        add(new CPoint(label, features));
     }
 
     synchronized public void add(CPoint point)
@@ -80,6 +88,7 @@ public class GKNN implements IClassifier
         if (point == null)
             return;
         points.add(point);
+        checkBalance();
     }
 
     @Override
@@ -87,12 +96,100 @@ public class GKNN implements IClassifier
     {
         if (points.size() > 0) {
             CPoint last = points.remove(points.size()-1);
+            indexed = Math.min(indexed, points.size());
+            lowWater = Math.min(lowWater, points.size());
+            checkBalance();
             return last;
         }
 
         return null;
     }
 
+    /** Start rebuilding the tree if too many points are outside of it */
+    private void checkBalance()
+    {
+        if (points.size() == 0) {
+            // Nothing left to index. A rebuild still running will find the
+            // list empty too when it is done.
+            tree = null;
+            indexed = 0;
+            return;
+        }
+
+        int outside = points.size() - indexed;
+        int stale = (tree == null) ? 0 : tree.size - indexed;
+        if (rebuilding || outside + stale <= REBUILD_SLACK + indexed/4)
+            return;
+
+        rebuilding = true;
+        lowWater = points.size();
+        final int gen = generation;
+        final int n = points.size();
+        final ArrayList<CPoint> snapshot = new ArrayList<CPoint>(points);
+        rebuilder.execute(new Runnable() {
+            public void run()
+            {
+                KDTree built = null;
+                try {
+                    built = new KDTree(snapshot, n, snapshot.get(0).coords.length);
+                } finally {
+                    // Even if the build failed, so later ones can start
+                    synchronized (GKNN.this) {
+                        if (gen == generation) {
+                            rebuilding = false;
+                            if (built != null) {
+                                tree = built;
+                                indexed = Math.min(n, lowWater);
+                                checkBalance();
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /** Build the tree over every point right away */
+    private void rebuild()
+    {
+        generation++;
+        rebuilding = false;
+        if (points.size() == 0) {
+            tree = null;
+            indexed = 0;
+            return;
+        }
+        tree = new KDTree(points, points.size(), points.get(0).coords.length);
+        indexed = points.size();
+    }
+
+    /** Whether a rebuild has been started and not finished */
+    synchronized boolean isRebuilding()
+    {
+        return rebuilding;
+    }
+
+    /** The k nearest points to features, other than the point at index
+     *  exclude, ordered by distance */
+    private KDTree.Neighbors nearest(double[] features, int exclude)
+    {
+        KDTree.Neighbors nb = new KDTree.Neighbors(k);
+        if (tree != null)
+            tree.search(features, indexed, exclude, nb);
+        for (int i = indexed; i < points.size(); i++) {
+            if (i == exclude)
+                continue;
+            double[] coords = points.get(i).coords;
+            double d2 = 0;
+            for (int d = 0; d < coords.length; d++) {
+                double v = features[d] - coords[d];
+                d2 += v*v;
+            }
+            nb.offer(i, d2);
+        }
+        return nb;
+    }
+
     @Override
     synchronized public Classifications classify(ArrayList<Double> features)
     {
@@ -103,14 +200,16 @@ public class GKNN implements IClassifier
      *  probability (XXX) of each label being correct
      *  based on our current set of observations
      */
-    public Classifications classify(double[] features)
+    synchronized public Classifications classify(double[] features)
+    {
+        return classify(features, -1);
+    }
+
+    /** Classify as if the point at index exclude were not there */
+    private Classifications classify(double[] features, int exclude)
     {
         // Find the k nearest neighbors
-        // By sorting the list, we ensure that the first
-        // k entries of the list of points are also the
-        // nearest neighbors.
-        ArrayList<CPoint> sortedPoints = (ArrayList<CPoint>)points.clone();
-        Collections.sort(sortedPoints, new CPointComparator(features));
+        KDTree.Neighbors nb = nearest(features, exclude);
 
         // Evaluate the neighbors based on the weights
         double[][] P = LinAlg.scale(LinAlg.identity(features.length), p);
@@ -121,8 +220,8 @@ public class GKNN implements IClassifier
         HashMap<String, Integer> labelExamples = new HashMap<String, Integer>();
         double totalWeight = 0;
 
-        for (int i = 0; i < Math.min(k, sortedPoints.size()); i++) {
-            CPoint point = sortedPoints.get(i);
+        for (int i = 0; i < nb.count; i++) {
+            CPoint point = points.get(nb.ids[i]);
             double weight = mg.prob(point.coords);
             totalWeight += weight;
             double oldWeight = 0;
@@ -163,6 +262,7 @@ public class GKNN implements IClassifier
     synchronized public void clearData()
     {
         points.clear();
+        rebuild();
     }
 
     /** Load in the classifier data from file*/
@@ -187,6 +287,7 @@ public class GKNN implements IClassifier
             System.err.println("ERR: Trouble loading GKNN file");
             ioex.printStackTrace();
         }
+        rebuild();
 
         //LOOCV();
     }
@@ -198,18 +299,13 @@ public class GKNN implements IClassifier
     }
 
     // Leave one out cross validation
-    public void LOOCV()
+    synchronized public void LOOCV()
     {
         HashMap<String, Pair<Integer, Integer> > accumulator = new HashMap<String, Pair<Integer, Integer> >();
         int size = points.size();
         for (int i = 0; i < size; i++) {
-            // Take out a test point
-            ArrayList<CPoint> training = new ArrayList<CPoint>(points);
-            CPoint cp = training.remove(i);
-
-            // Swap the training points - 1 in for classification
-            ArrayList<CPoint> temp = points;
-            points = training;
+            // Leave out a test point
+            CPoint cp = points.get(i);
 
             if (!accumulator.containsKey(cp.label)) {
                 accumulator.put(cp.label, new Pair<Integer, Integer>(0, 0));
@@ -217,7 +313,7 @@ public class GKNN implements IClassifier
             Pair<Integer, Integer> pair = accumulator.get(cp.label);
             pair.o1 += 1;
 
-            Classifications cs = classify(cp.coords);
+            Classifications cs = classify(cp.coords, i);
             String label = cs.getBestLabel().label;
 
             if (cp.label.equals(label)) {
@@ -225,9 +321,6 @@ public class GKNN implements IClassifier
             }
 
             accumulator.put(cp.label, pair);
-
-            // Swap back in the old points
-            points = temp;
         }
 
         // Print out stats
@@ -238,10 +331,125 @@ public class GKNN implements IClassifier
         }
     }
 
+    /** The k nearest points to features by comparing against every point,
+     *  in the same order as nearest(features, -1) */
+    private KDTree.Neighbors nearestBruteForce(double[] features)
+    {
+        KDTree.Neighbors nb = new KDTree.Neighbors(k);
+        for (int i = 0; i < points.size(); i++) {
+            double[] coords = points.get(i).coords;
+            double d2 = 0;
+            for (int d = 0; d < coords.length; d++) {
+                double v = features[d] - coords[d];
+                d2 += v*v;
+            }
+            nb.offer(i, d2);
+        }
+        return nb;
+    }
+
+    /** Runs a random mix of adds, removeLasts, clears and queries against
+     *  a classifier, checking every query's neighbors against a brute force
+     *  search, then empties it over and over and checks that rebuilds still
+     *  finish when the list is empty by the time they are done. Prints the time per query with and without
+     *  the tree, and returns the number of mismatches. */
+    public static int check(int ops, int size, long seed) throws InterruptedException
+    {
+        Random rand = new Random(seed);
+        GKNN knn = new GKNN(10, 0.1);
+        int mismatches = 0;
+        long treeNanos = 0, bruteNanos = 0;
+        int queries = 0;
+
+        for (int i = 0; i < size; i++)
+            knn.add(randomPoint(rand), "l"+rand.nextInt(8));
+        for (int q = 0; q < ops; q++) {
+            int op = rand.nextInt(10);
+            if (op < 3) {
+                knn.add(randomPoint(rand), "l"+rand.nextInt(8));
+            } else if (op < 5) {
+                knn.removeLast();
+            } else if (op == 5 && rand.nextInt(1000) == 0) {
+                knn.clearData();
+            } else {
+                double[] f = randomPoint(rand);
+                synchronized (knn) {
+                    long start = System.nanoTime();
+                    KDTree.Neighbors fast = knn.nearest(f, -1);
+                    long mid = System.nanoTime();
+                    KDTree.Neighbors slow = knn.nearestBruteForce(f);
+                    long end = System.nanoTime();
+                    treeNanos += mid - start;
+                    bruteNanos += end - mid;
+                    queries++;
+                    if (fast.count != slow.count ||
+                        !Arrays.equals(Arrays.copyOf(fast.ids, fast.count),
+                                       Arrays.copyOf(slow.ids, slow.count))) {
+                        System.out.println("query "+q+": neighbors differ from brute force");
+                        mismatches++;
+                    }
+                }
+            }
+        }
+
+        // Empty the classifier over and over. Removing points starts a
+        // rebuild, which often finishes once the list is already empty.
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < size; i++)
+                knn.add(randomPoint(rand), "l0");
+            if (!waitForRebuild(knn)) {
+                mismatches++;
+                break;
+            }
+            while (knn.removeLast() != null)
+                ;
+            if (!waitForRebuild(knn)) {
+                mismatches++;
+                break;
+            }
+        }
+        knn.add(randomPoint(rand), "l0");
+        if (knn.classify(randomPoint(rand)).getBestLabel() == null) {
+            System.out.println("no label after refilling the emptied classifier");
+            mismatches++;
+        }
+
+        System.out.printf("%d queries on about %d points, %d mismatches, %.4f ms per query (brute force %.4f ms)\n",
+                          queries, size, mismatches, treeNanos/1e6/Math.max(queries, 1),
+                          bruteNanos/1e6/Math.max(queries, 1));
+        return mismatches;
+    }
+
+    private static boolean waitForRebuild(GKNN knn) throws InterruptedException
+    {
+        for (int wait = 0; knn.isRebuilding(); wait++) {
+            if (wait == 5000) {
+                System.out.println("rebuild never finished");
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    private static double[] randomPoint(Random rand)
+    {
+        // A few coordinates on a grid, so there are exact ties
+        return new double[] {rand.nextDouble(), rand.nextDouble(),
+                             Math.floor(rand.nextDouble()*5)/5};
+    }
+
     // =============================================
 
-    public static void main(String[] args)
+    /** usage: GKNN (runs the color example), or GKNN -check [ops] [size] */
+    public static void main(String[] args) throws InterruptedException
     {
+        if (args.length > 0 && args[0].equals("-check")) {
+            int ops = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+            int size = (args.length > 2) ? Integer.parseInt(args[2]) : 5000;
+            System.exit(check(ops, size, 1) == 0 ? 0 : 1);
+        }
+
         // Test code!
         GKNN knn = new GKNN(10, 0.1);
 
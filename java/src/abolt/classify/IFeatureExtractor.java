@@ -0,0 +1,25 @@
+package abolt.classify;
+
+import java.util.*;
+
+import abolt.kinect.ObjectInfo;
+
+/** Extracts the features of one FeatureCategory. Implementations are
+ *  registered with Features.register, which times every call. */
+public interface IFeatureExtractor {
+    /** Intermediate results an extractor can read from FeatureInputs. Each
+     *  is computed at most once per object, however many extractors use it. */
+    enum Input {
+        IMAGE,          // The object projected into the camera image
+        SAMPLE,         // Subsample of the object's points (see PointSubsampler)
+    }
+
+    /** The intermediate results getFeatures(object, inputs) reads */
+    Input[] getDependencies();
+
+    /** Features of a segmented object, or null if there are none */
+    ArrayList<Double> getFeatures(ObjectInfo object, FeatureInputs inputs);
+
+    /** Features of a list of (x, y, z, rgb) points, or null if there are none */
+    ArrayList<Double> getFeatures(ArrayList<double[]> points);
+}
@@ -0,0 +1,192 @@
+package abolt.classify;
+
+import java.util.*;
+
+/** An immutable k-d tree over a snapshot of points, for k nearest neighbor
+ *  queries. The coordinates are copied into one contiguous array in tree
+ *  order, so a query walks memory roughly in order instead of chasing a
+ *  double[] per point.
+ *
+ *  The tree is implicit: the node over the points [lo, hi) is the point at
+ *  mid = (lo+hi)/2, which splits the others on splitDim[mid] into [lo, mid)
+ *  and [mid+1, hi). Ranges of at most LEAF_SIZE points are scanned.
+ *
+ *  Each point carries the id it was built with (its index in the caller's
+ *  list). Queries can skip ids at or past a limit, which is how points
+ *  removed from the end of the caller's list since the build are ignored.
+ */
+public class KDTree
+{
+    final static int LEAF_SIZE = 8;
+
+    final int dim;
+    final int size;
+    private final double[] coords;      // Point i at coords[i*dim, (i+1)*dim)
+    private final int[] ids;
+    private final int[] splitDim;
+
+    /** The k nearest points found so far, ordered by distance and then id */
+    public static class Neighbors
+    {
+        public int count = 0;
+        public final int[] ids;
+        public final double[] dist2;
+
+        public Neighbors(int k)
+        {
+            ids = new int[k];
+            dist2 = new double[k];
+        }
+
+        boolean isFull()
+        {
+            return count == ids.length;
+        }
+
+        double worst()
+        {
+            return isFull() ? dist2[count-1] : Double.POSITIVE_INFINITY;
+        }
+
+        /** Keep the point if it is among the k nearest. Ties go to the lower
+         *  id, which is the order a stable sort of the list would give. */
+        public void offer(int id, double d2)
+        {
+            int i = count;
+            if (isFull()) {
+                if (d2 > dist2[i-1] || (d2 == dist2[i-1] && id > ids[i-1]))
+                    return;
+                i--;
+            } else {
+                count++;
+            }
+            while (i > 0 && (dist2[i-1] > d2 || (dist2[i-1] == d2 && ids[i-1] > id))) {
+                ids[i] = ids[i-1];
+                dist2[i] = dist2[i-1];
+                i--;
+            }
+            ids[i] = id;
+            dist2[i] = d2;
+        }
+    }
+
+    /** Build a tree over the first n points, with ids 0 to n-1 */
+    public KDTree(List<CPoint> points, int n, int dim)
+    {
+        this.dim = dim;
+        this.size = n;
+
+        double[] src = new double[n*dim];
+        for (int i = 0; i < n; i++)
+            System.arraycopy(points.get(i).coords, 0, src, i*dim, dim);
+
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        splitDim = new int[n];
+        build(src, order, 0, n);
+
+        coords = new double[n*dim];
+        ids = order;
+        for (int i = 0; i < n; i++)
+            System.arraycopy(src, order[i]*dim, coords, i*dim, dim);
+    }
+
+    private void build(double[] src, int[] order, int lo, int hi)
+    {
+        if (hi - lo <= LEAF_SIZE)
+            return;
+
+        // Split on the dimension the points are most spread out in
+        int best = 0;
+        double bestSpread = -1;
+        for (int d = 0; d < dim; d++) {
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            for (int i = lo; i < hi; i++) {
+                double v = src[order[i]*dim + d];
+                if (v < min) min = v;
+                if (v > max) max = v;
+            }
+            if (max - min > bestSpread) {
+                bestSpread = max - min;
+                best = d;
+            }
+        }
+
+        int mid = (lo + hi) >>> 1;
+        select(src, order, lo, hi - 1, mid, best);
+        splitDim[mid] = best;
+        build(src, order, lo, mid);
+        build(src, order, mid + 1, hi);
+    }
+
+    /** Partially sort order[lo..hi] on dimension d so that order[nth] is in
+     *  its sorted place (quickselect) */
+    private void select(double[] src, int[] order, int lo, int hi, int nth, int d)
+    {
+        while (hi > lo) {
+            double pivot = src[order[(lo + hi) >>> 1]*dim + d];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (src[order[i]*dim + d] < pivot) i++;
+                while (src[order[j]*dim + d] > pivot) j--;
+                if (i <= j) {
+                    int t = order[i];
+                    order[i] = order[j];
+                    order[j] = t;
+                    i++;
+                    j--;
+                }
+            }
+            if (nth <= j)
+                hi = j;
+            else if (nth >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+
+    /** Offer every point with an id below limit, other than exclude, that
+     *  could be among the nearest to q */
+    public void search(double[] q, int limit, int exclude, Neighbors nb)
+    {
+        search(q, limit, exclude, nb, 0, size);
+    }
+
+    private void search(double[] q, int limit, int exclude, Neighbors nb, int lo, int hi)
+    {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++)
+                offer(q, limit, exclude, nb, i);
+            return;
+        }
+
+        int mid = (lo + hi) >>> 1;
+        double diff = q[splitDim[mid]] - coords[mid*dim + splitDim[mid]];
+        offer(q, limit, exclude, nb, mid);
+        if (diff < 0) {
+            search(q, limit, exclude, nb, lo, mid);
+            if (diff*diff <= nb.worst())
+                search(q, limit, exclude, nb, mid + 1, hi);
+        } else {
+            search(q, limit, exclude, nb, mid + 1, hi);
+            if (diff*diff <= nb.worst())
+                search(q, limit, exclude, nb, lo, mid);
+        }
+    }
+
+    private void offer(double[] q, int limit, int exclude, Neighbors nb, int i)
+    {
+        int id = ids[i];
+        if (id >= limit || id == exclude)
+            return;
+        double d2 = 0;
+        int base = i*dim;
+        for (int d = 0; d < dim; d++) {
+            double v = q[d] - coords[base + d];
+            d2 += v*v;
+        }
+        nb.offer(id, d2);
+    }
+}
@@ -1,11 +1,20 @@
 package abolt.classify;
 
 import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Random;
 
 import javax.imageio.ImageIO;
 
@@ -20,6 +29,29 @@ public class PCA {
 		return c.getRed() > 1 || c.getGreen() > 1 || c.getBlue() > 1;
 	}
 
+	public static boolean isValidPixel(int rgb){
+		return ((rgb >> 16) & 0xff) > 1 || ((rgb >> 8) & 0xff) > 1 || (rgb & 0xff) > 1;
+	}
+
+	/** The image's pixels as packed RGB, one row after another. Images backed
+	 *  by a packed int raster (as ObjectInfo.getImage makes) are read in
+	 *  place, without copying. **/
+	static int[] getRGB(BufferedImage img){
+		Raster raster = img.getRaster();
+		if(img.getType() == BufferedImage.TYPE_INT_RGB &&
+		   raster.getDataBuffer() instanceof DataBufferInt &&
+		   raster.getSampleModel() instanceof SinglePixelPackedSampleModel &&
+		   raster.getParent() == null){
+			SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel)raster.getSampleModel();
+			DataBufferInt data = (DataBufferInt)raster.getDataBuffer();
+			if(sm.getScanlineStride() == img.getWidth() && data.getOffset() == 0 &&
+			   data.getNumBanks() == 1){
+				return data.getData();
+			}
+		}
+		return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
+	}
+
 	public static double[] getMean(ArrayList<int[]> pixels){
 		// compute the mean
     	int n = pixels.size();
@@ -145,9 +177,141 @@ public class PCA {
 		return 0;
 	}
 
+	/** getFeature over packed pixels (see getRGB). Takes the same half pixel
+	 *  steps and returns the same distance, but gives up with 0 once it is
+	 *  maxDist past the start. The pixels a step looks at are less than
+	 *  3 pixels from it, so past the far side of the OBB plus that margin no
+	 *  step can reach the object, and the original walk would also have
+	 *  returned 0 (by leaving the image or running out of iterations). Each
+	 *  feature therefore costs O(OBB width) steps rather than up to 100000.
+	 **/
+	static double getFeature(int[] rgb, int width, int height,
+	                         double[] start, double[] dir, double maxDist){
+		final double increment = .5;
+		double x = start[0];
+		double y = start[1];
+		double dist = 0;
+
+		boolean inBounds = false;
+		int iters = 0;
+		while(iters++ < 100000 && dist <= maxDist){
+			int xi = (int)x;
+			int yi = (int)y;
+			if(xi >= 0 && yi >= 0 && xi < width && yi < height){
+				inBounds = true;
+				if(isValidPixel(rgb[yi*width + xi])){
+					return dist;
+				}
+			} else if(inBounds){
+				return 0;
+			}
+			xi++;
+			yi++;
+			if(xi >= 0 && yi >= 0 && xi < width && yi < height &&
+			   isValidPixel(rgb[yi*width + xi])){
+				return dist;
+			}
+
+			x += dir[0] * increment;
+			y += dir[1] * increment;
+			dist += increment;
+		}
+		return 0;
+	}
+
 	public static ArrayList<Double> getFeatures(BufferedImage img, int numFeatures){
 		// Directions are with right being +v1 and up being +v2
+		int width = img.getWidth();
+		int height = img.getHeight();
+		int[] rgb = getRGB(img);
+
+		// Mean and covariance of the object's pixel coordinates, in one pass
+		int n = 0;
+		double sx = 0, sy = 0, sxx = 0, sxy = 0, syy = 0;
+		int minX = width, maxX = -1, minY = height, maxY = -1;
+		for(int y = 0; y < height; y++){
+			int row = y*width;
+			for(int x = 0; x < width; x++){
+				if(!isValidPixel(rgb[row + x]))
+					continue;
+				n++;
+				sx += x;
+				sy += y;
+				sxx += x*x;
+				sxy += x*y;
+				syy += y*y;
+				if(x < minX) minX = x;
+				if(x > maxX) maxX = x;
+				if(y < minY) minY = y;
+				if(y > maxY) maxY = y;
+			}
+		}
+	    if(n == 0){
+	    	return null;
+	    }
+		double[] mean = new double[]{sx/n, sy/n};
+		double cxy = sxy/n - mean[0]*mean[1];
+    	double[][] cov = new double[][]{{sxx/n - mean[0]*mean[0], cxy},
+    	                                {cxy, syy/n - mean[1]*mean[1]}};
+
+    	double[] v1 = getPrincipleEigenvector(cov);
+	    double[] v2 = new double[]{-v1[1], v1[0]}; // perpendicular vector
+
+		// project the pixels onto each axis (get OBB limits from mean). The
+		// axes depend on the whole covariance, so this takes a second pass,
+		// limited to the rows and columns that hold object pixels.
+	    double[] proj1 = new double[]{Double.MAX_VALUE, Double.MIN_VALUE};
+	    double[] proj2 = new double[]{Double.MAX_VALUE, Double.MIN_VALUE};
+		for(int y = minY; y <= maxY; y++){
+			int row = y*width;
+			double dy = y - mean[1];
+			for(int x = minX; x <= maxX; x++){
+				if(!isValidPixel(rgb[row + x]))
+					continue;
+				double dx = x - mean[0];
+				double p1 = dx*v1[0] + dy*v1[1];
+				double p2 = dx*v2[0] + dy*v2[1];
+				proj1[0] = (p1 < proj1[0] ? p1 : proj1[0]);
+				proj1[1] = (p1 > proj1[1] ? p1 : proj1[1]);
+				proj2[0] = (p2 < proj2[0] ? p2 : proj2[0]);
+				proj2[1] = (p2 > proj2[1] ? p2 : proj2[1]);
+			}
+		}
+
+	    // left center of the OBB
+	    double[] leftCenter = new double[2];
+	    leftCenter[0] = mean[0] + proj1[0]*v1[0];
+	    leftCenter[1] = mean[1] + proj1[0]*v1[1];
+	    double maxDist = (proj2[1] - proj2[0]) + 3;
 
+	    ArrayList<Double> features = new ArrayList<Double>();
+	    features.add((proj1[1] - proj1[0])/(proj2[1] - proj2[0]));
+	    for(int i = 0; i < 2; i++){
+	    	// Start at bottom-left or top-left
+	    	double[] start = new double[2];
+	    	start[0] = leftCenter[0] + proj2[i]*v2[0];
+	    	start[1] = leftCenter[1] + proj2[i]*v2[1];
+
+	    	// Direction is either up or down
+	    	double[] dir = LinAlg.scale(v2, (i == 0 ? 1 : -1));
+
+	    	// Pick points evenly along the line
+	    	for(float perc = .02f; perc <= .98f; perc += .95f/(numFeatures-1)){
+	    		double[] pt = new double[2];
+	    		pt[0] = start[0] + perc*(proj1[1] - proj1[0])*v1[0];
+	    		pt[1] = start[1] + perc*(proj1[1] - proj1[0])*v1[1];
+	    		features.add(getFeature(rgb, width, height, pt, dir, maxDist)/(proj2[1] - proj2[0]));
+	    	}
+	    }
+
+    	return features;
+	}
+
+	/** The features as they were first computed: one Color per pixel, the
+	 *  covariance as a matrix product and a ray march per profile feature.
+	 *  getFeatures has to give the same values (see check), or the
+	 *  shape_features.dat training data goes stale. **/
+	public static ArrayList<Double> getFeaturesReference(BufferedImage img, int numFeatures){
 	    ArrayList<int[]> pixels = getPixels(img);
 	    if(pixels.size() == 0){
 	    	return null;
@@ -158,34 +322,22 @@ public class PCA {
     	double[] v1 = getPrincipleEigenvector(cov);
 	    double[] v2 = new double[]{-v1[1], v1[0]}; // perpendicular vector
 
-		// project the pixels onto each axis (get OBB limits from mean)
 	    double[] proj1 = projectOntoVector(pixels, mean, v1);
 	    double[] proj2 = projectOntoVector(pixels, mean, v2);
 
-	    // left center of the OBB
 	    double[] leftCenter = new double[2];
 	    leftCenter[0] = mean[0] + proj1[0]*v1[0];
 	    leftCenter[1] = mean[1] + proj1[0]*v1[1];
 
-//	    System.out.println(img.getWidth() + ", " + img.getHeight());
-//	    System.out.println(mean[0] + ", " + mean[1]);
-//	    System.out.println("v1" + v1[0] + ", " + v1[1]);
-//	    System.out.println("v2" + v2[0] + ", " + v2[1]);
-//	    System.out.println(proj1[0] + ", " + proj1[1]);
-//	    System.out.println(proj2[0] + ", " + proj2[1]);
-
 	    ArrayList<Double> features = new ArrayList<Double>();
 	    features.add((proj1[1] - proj1[0])/(proj2[1] - proj2[0]));
 	    for(int i = 0; i < 2; i++){
-	    	// Start at bottom-left or top-left
 	    	double[] start = new double[2];
 	    	start[0] = leftCenter[0] + proj2[i]*v2[0];
 	    	start[1] = leftCenter[1] + proj2[i]*v2[1];
 
-	    	// Direction is either up or down
 	    	double[] dir = LinAlg.scale(v2, (i == 0 ? 1 : -1));
 
-	    	// Pick points evenly along the line
 	    	for(float perc = .02f; perc <= .98f; perc += .95f/(numFeatures-1)){
 	    		double[] pt = new double[2];
 	    		pt[0] = start[0] + perc*(proj1[1] - proj1[0])*v1[0];
@@ -197,11 +349,84 @@ public class PCA {
     	return features;
 	}
 
+	/** Draws count random ellipses, rectangles and triangles (rotated, with
+	 *  random colors and a few holes) and compares getFeatures against
+	 *  getFeaturesReference on each. Prints the largest difference and the
+	 *  time each took, and returns the largest difference. **/
+	public static double check(int count, long seed){
+		Random rand = new Random(seed);
+		double maxDiff = 0;
+		long fastNanos = 0, refNanos = 0;
+		for(int t = 0; t < count; t++){
+			int w = 20 + rand.nextInt(100);
+			int h = 20 + rand.nextInt(100);
+			BufferedImage img = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = img.createGraphics();
+			g.setColor(new Color(2 + rand.nextInt(254), rand.nextInt(256), rand.nextInt(256)));
+			AffineTransform rot = AffineTransform.getRotateInstance(rand.nextDouble()*Math.PI, w/2.0, h/2.0);
+			double a = 3 + rand.nextDouble()*(w/2.0 - 6);
+			double b = 3 + rand.nextDouble()*(h/2.0 - 6);
+			if(t % 3 == 0){
+				g.fill(rot.createTransformedShape(new Ellipse2D.Double(w/2.0 - a, h/2.0 - b, 2*a, 2*b)));
+			} else if(t % 3 == 1){
+				g.fill(rot.createTransformedShape(new Rectangle2D.Double(w/2.0 - a, h/2.0 - b, 2*a, 2*b)));
+			} else {
+				Path2D.Double tri = new Path2D.Double();
+				tri.moveTo(w/2.0 - a, h/2.0 + b);
+				tri.lineTo(w/2.0 + a, h/2.0 + b);
+				tri.lineTo(w/2.0 + (rand.nextDouble()*2 - 1)*a, h/2.0 - b);
+				tri.closePath();
+				g.fill(rot.createTransformedShape(tri));
+			}
+			g.dispose();
+			for(int hole = rand.nextInt(w*h/50 + 1); hole > 0; hole--){
+				img.setRGB(rand.nextInt(w), rand.nextInt(h), 0);
+			}
+
+			long start = System.nanoTime();
+			ArrayList<Double> fast = getFeatures(img, 7);
+			long mid = System.nanoTime();
+			ArrayList<Double> ref = getFeaturesReference(img, 7);
+			long end = System.nanoTime();
+			fastNanos += mid - start;
+			refNanos += end - mid;
+
+			if(fast == null || ref == null){
+				if(fast != ref){
+					System.out.println("shape "+t+": only one implementation found no pixels");
+					maxDiff = Double.POSITIVE_INFINITY;
+				}
+				continue;
+			}
+			if(fast.size() != ref.size()){
+				System.out.println("shape "+t+": "+fast.size()+" features, expected "+ref.size());
+				maxDiff = Double.POSITIVE_INFINITY;
+				continue;
+			}
+			for(int i = 0; i < fast.size(); i++){
+				double diff = Math.abs(fast.get(i) - ref.get(i));
+				if(diff > 1e-9){
+					System.out.println("shape "+t+" feature "+i+": "+fast.get(i)+", expected "+ref.get(i));
+				}
+				maxDiff = Math.max(maxDiff, diff);
+			}
+		}
+		System.out.printf("%d shapes, largest difference %g, %.3f ms per shape (reference %.3f ms)\n",
+		                  count, maxDiff, fastNanos/1e6/count, refNanos/1e6/count);
+		return maxDiff;
+	}
+
+	/** usage: PCA [image] (default circle.png), or PCA -check [count] **/
 	public static void main(String args[])
     {
+		if(args.length > 0 && args[0].equals("-check")){
+			double maxDiff = check(args.length > 1 ? Integer.parseInt(args[1]) : 300, 1);
+			System.exit(maxDiff <= 1e-9 ? 0 : 1);
+		}
+
 		BufferedImage img = null;
 		try {
-		    img = ImageIO.read(new File("circle.png"));
+		    img = ImageIO.read(new File(args.length > 0 ? args[0] : "circle.png"));
 		    ArrayList<Double> f  = getFeatures(img, 7);
 		    for(int i = 0; i < f.size(); i++){
 		    	System.out.print(f.get(i) + ", ");
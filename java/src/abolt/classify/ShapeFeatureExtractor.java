@@ -15,11 +15,11 @@ import abolt.kinect.*;
 public class ShapeFeatureExtractor
 {
 	public static ArrayList<Double> getFeatures(ObjectInfo object) {
-		return getFeatures(object.getImage());
+		return getFeatures(object.getScratchImage());
 	}
 
 	public static ArrayList<Double> getFeatures(ArrayList<double[]> points) {
-		BufferedImage img = ObjectInfo.getImage(points, null);
+		BufferedImage img = ObjectInfo.getScratchImage(points, null);
 		return getFeatures(img);
 	}
 
@@ -13,45 +13,131 @@ import abolt.util.*;
  * Contains methods for extracting size features from an object or point cloud
  */
 public class SizeFeatureExtractor{
+	/** Uses the object's running statistics for the bounding box and mean,
+	 *  so only the distance from the mean needs a pass over the points. **/
 	public static ArrayList<Double> getFeatures(ObjectInfo object)
     {
-		return getFeatures(object.points);
+		int n = object.numPoints;
+		if(n == 0)
+			return getFeatures(object.frame, object.indices, n);
+
+		ArrayList<Double> features = new ArrayList<Double>();
+		double[] bbox = object.stats.getBoundingBox();
+		features.add(diagonal(bbox[3] - bbox[0], bbox[4] - bbox[1], bbox[5] - bbox[2]));
+
+		double[] mean = object.stats.getMean();
+		features.add(meanDistance(object.frame, object.indices, n, mean));
+		return features;
 	}
 
-    // XXX Original size features
-	public static ArrayList<Double> getFeatures(ArrayList<double[]> points)
+	/** Average distance of the first n indices of a frame from a point **/
+	public static double meanDistance(PointCloudFrame frame, int[] indices, int n, double[] mean)
+	{
+		if(n == 0)
+			return 0;
+		double distSum = 0;
+		for(int i = 0; i < n; i++){
+			int j = indices[i];
+			double dx = frame.x[j] - mean[0];
+			double dy = frame.y[j] - mean[1];
+			double dz = frame.z[j] - mean[2];
+			distSum += Math.sqrt(dx*dx + dy*dy + dz*dz);
+		}
+		return distSum / n;
+	}
+
+	/** Same features as getFeatures(points), over the first n indices of a frame **/
+	public static ArrayList<Double> getFeatures(PointCloudFrame frame, int[] indices, int n)
     {
 		ArrayList<Double> features = new ArrayList<Double>();
-		if(points.size() == 0){
+		if(n == 0){
 			features.add(0.0);
 			features.add(0.0);
 			return features;
 		}
 
+		// Bounding box and mean together
+		double xmin = 1000, ymin = 1000, zmin = 1000;
+		double xmax = -1000, ymax = -1000, zmax = -1000;
+		double mx = 0, my = 0, mz = 0;
+		for(int i = 0; i < n; i++){
+			int j = indices[i];
+			double x = frame.x[j], y = frame.y[j], z = frame.z[j];
+			if(x < xmin) xmin = x;
+			if(y < ymin) ymin = y;
+			if(z < zmin) zmin = z;
+			if(x > xmax) xmax = x;
+			if(y > ymax) ymax = y;
+			if(z > zmax) zmax = z;
+			mx += x;
+			my += y;
+			mz += z;
+		}
+		mx /= n;
+		my /= n;
+		mz /= n;
+
 		// Feature: Length of bbox diagonal
-		double[] bbox = boundingBox(points);
-		features.add(Math.sqrt(LinAlg.normF(new double[]{bbox[3] - bbox[0], bbox[4] - bbox[1], bbox[5] - bbox[2]})));
+		features.add(diagonal(xmax - xmin, ymax - ymin, zmax - zmin));
 
-		// Feature: average distance from the mean
-		double[] mean = new double[4];
+		// Feature: average distance from the mean, which needs the mean first
+		features.add(meanDistance(frame, indices, n, new double[]{mx, my, mz}));
+
+		return features;
+	}
+
+    // XXX Original size features
+	public static ArrayList<Double> getFeatures(ArrayList<double[]> points)
+    {
+		ArrayList<Double> features = new ArrayList<Double>();
+		int n = points.size();
+		if(n == 0){
+			features.add(0.0);
+			features.add(0.0);
+			return features;
+		}
+
+		// Bounding box and mean together
+		double xmin = 1000, ymin = 1000, zmin = 1000;
+		double xmax = -1000, ymax = -1000, zmax = -1000;
+		double mx = 0, my = 0, mz = 0;
 		for(double[] pt : points){
-			mean = LinAlg.add(mean, pt);
+			double x = pt[0], y = pt[1], z = pt[2];
+			if(x < xmin) xmin = x;
+			if(y < ymin) ymin = y;
+			if(z < zmin) zmin = z;
+			if(x > xmax) xmax = x;
+			if(y > ymax) ymax = y;
+			if(z > zmax) zmax = z;
+			mx += x;
+			my += y;
+			mz += z;
 		}
-		mean = LinAlg.scale(mean, 1.0/points.size());
+		mx /= n;
+		my /= n;
+		mz /= n;
 
+		// Feature: Length of bbox diagonal
+		features.add(diagonal(xmax - xmin, ymax - ymin, zmax - zmin));
+
+		// Feature: average distance from the mean
 		double distSum = 0;
 		for(double[] pt : points){
-			double[] diff = LinAlg.subtract(pt, mean);
-			diff[3] = 0;
-			distSum += Math.sqrt(LinAlg.normF(diff));
+			double dx = pt[0] - mx;
+			double dy = pt[1] - my;
+			double dz = pt[2] - mz;
+			distSum += Math.sqrt(dx*dx + dy*dy + dz*dz);
 		}
-		distSum /= points.size();
-
-		features.add(distSum);
+		features.add(distSum / n);
 
 		return features;
 	}
 
+	private static double diagonal(double dx, double dy, double dz)
+	{
+		return Math.sqrt(dx*dx + dy*dy + dz*dz);
+	}
+
 //    // Slightly improved (???) size features
 //    public static ArrayList<Double> getFeatures(ArrayList<double[]> points)
 //    {
@@ -109,19 +195,69 @@ public class SizeFeatureExtractor{
 		return new double[] { min[0], min[1], min[2], max[0], max[1], max[2] };
 	}
 
+	/** Bounding box over the first n indices of a frame **/
+	public static double[] boundingBox(PointCloudFrame frame, int[] indices, int n) {
+		double[] bb = new double[] { 1000, 1000, 1000, -1000, -1000, -1000 };
+		for (int k = 0; k < n; k++) {
+			int j = indices[k];
+			double x = frame.x[j], y = frame.y[j], z = frame.z[j];
+			if (x < bb[0]) bb[0] = x;
+			if (y < bb[1]) bb[1] = y;
+			if (z < bb[2]) bb[2] = z;
+			if (x > bb[3]) bb[3] = x;
+			if (y > bb[4]) bb[4] = y;
+			if (z > bb[5]) bb[5] = z;
+		}
+		return bb;
+	}
+
+	/** World frame bounding box over the first n indices of a frame. Uses
+	 *  the frame's world coordinates if it has them, and otherwise converts
+	 *  the points with the camera's world affine in one sweep. **/
+	public static double[] boundingBoxWorld(PointCloudFrame frame, int[] indices, int n) {
+		double[] bb = new double[] { 1000, 1000, 1000, -1000, -1000, -1000 };
+		if (frame.hasWorld) {
+			for (int k = 0; k < n; k++) {
+				int j = indices[k];
+				float x = frame.wx[j], y = frame.wy[j], z = frame.wz[j];
+				if (x < bb[0]) bb[0] = x;
+				if (y < bb[1]) bb[1] = y;
+				if (z < bb[2]) bb[2] = z;
+				if (x > bb[3]) bb[3] = x;
+				if (y > bb[4]) bb[4] = y;
+				if (z > bb[5]) bb[5] = z;
+			}
+			return bb;
+		}
+
+		double[][] A = Bolt.getCamera().getWorldAffine();
+		for (int k = 0; k < n; k++) {
+			int j = indices[k];
+			addWorld(bb, A, frame.x[j], frame.y[j], frame.z[j]);
+		}
+		return bb;
+	}
+
 	public static double[] boundingBoxWorld(ArrayList<double[]> points) {
-		double[] max = new double[] { -1000, -1000, -1000 };
-		double[] min = new double[] { 1000, 1000, 1000 };
+		double[] bb = new double[] { 1000, 1000, 1000, -1000, -1000, -1000 };
+		double[][] A = Bolt.getCamera().getWorldAffine();
 		for (double[] p : points) {
-            p = Bolt.getCamera().getWorldCoords(p);
-			for (int i = 0; i < 3; i++) {
-				if (p[i] < min[i])
-					min[i] = p[i];
-				if (p[i] > max[i])
-					max[i] = p[i];
-			}
+			addWorld(bb, A, p[0], p[1], p[2]);
 		}
-		return new double[] { min[0], min[1], min[2], max[0], max[1], max[2] };
+		return bb;
+	}
+
+	/** Grow a bounding box to hold point (x, y, z) after the affine A **/
+	private static void addWorld(double[] bb, double[][] A, double x, double y, double z) {
+		double wx = A[0][0]*x + A[0][1]*y + A[0][2]*z + A[0][3];
+		double wy = A[1][0]*x + A[1][1]*y + A[1][2]*z + A[1][3];
+		double wz = A[2][0]*x + A[2][1]*y + A[2][2]*z + A[2][3];
+		if (wx < bb[0]) bb[0] = wx;
+		if (wy < bb[1]) bb[1] = wy;
+		if (wz < bb[2]) bb[2] = wz;
+		if (wx > bb[3]) bb[3] = wx;
+		if (wy > bb[4]) bb[4] = wy;
+		if (wz > bb[5]) bb[5] = wz;
 	}
 
 
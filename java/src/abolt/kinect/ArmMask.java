@@ -0,0 +1,140 @@
+package abolt.kinect;
+
+import java.util.*;
+
+/** The arm rasterized into the kinect image. Each link of the arm is a
+ *  capsule (a segment between two joints with the link's width as radius).
+ *  The capsules are swept as a chain of spheres, and every pixel a sphere
+ *  projects onto records the range of depths the arm can occupy there.
+ *  A point is then on the arm if its depth falls in its pixel's range,
+ *  which costs one lookup instead of a distance test against every link.
+ *
+ *  The mask is laid out like the frames it is built for (same width,
+ *  height, origin and stride) and its arrays are reused from frame to frame.
+ **/
+public class ArmMask
+{
+    int width, height;
+    int originX, originY, stride;
+    float[] near, far;
+
+    // Pixels touched by the last build, so only they need to be cleared
+    int minX, minY, maxX, maxY;
+
+    public ArmMask()
+    {
+        width = 0;
+        height = 0;
+    }
+
+    /** Rasterize the arm for a frame.
+        @param joints are the world coordinates of the joints, from the base
+               out to the gripper; link i runs from joints[i] to joints[i+1]
+        @param widths are the radii of the links
+    **/
+    public void build(PointCloudFrame frame, ArrayList<double[]> joints, ArrayList<Double> widths)
+    {
+        if(frame.width != width || frame.height != height){
+            width = frame.width;
+            height = frame.height;
+            near = new float[width*height];
+            far = new float[width*height];
+            Arrays.fill(near, Float.MAX_VALUE);
+            Arrays.fill(far, -Float.MAX_VALUE);
+        }
+        else if(maxX >= minX){
+            for(int y=minY; y<=maxY; y++){
+                Arrays.fill(near, y*width + minX, y*width + maxX + 1, Float.MAX_VALUE);
+                Arrays.fill(far, y*width + minX, y*width + maxX + 1, -Float.MAX_VALUE);
+            }
+        }
+        originX = frame.originX;
+        originY = frame.originY;
+        stride = frame.stride;
+        minX = width;
+        minY = height;
+        maxX = -1;
+        maxY = -1;
+
+        double[] k1 = new double[3];
+        double[] k2 = new double[3];
+        int links = Math.min(widths.size(), joints.size()-1);
+        for(int i=0; i<links; i++){
+            double[] w1 = joints.get(i);
+            double[] w2 = joints.get(i+1);
+            KUtils.getKinectCoordinates(w1[0], w1[1], w1[2], k1);
+            KUtils.getKinectCoordinates(w2[0], w2[1], w2[2], k2);
+            addCapsule(k1, k2, widths.get(i));
+        }
+    }
+
+    /** Sweep a sphere of radius r from a to b (kinect coordinates), with
+     ** consecutive spheres overlapping by at least half their radius.
+     ** Links without a positive width mask nothing. **/
+    private void addCapsule(double[] a, double[] b, double r)
+    {
+        if(!(r > 0))
+            return;
+        double dx = b[0]-a[0], dy = b[1]-a[1], dz = b[2]-a[2];
+        double length = Math.sqrt(dx*dx + dy*dy + dz*dz);
+        int steps = (int)Math.ceil(length/(r/2));
+        for(int s=0; s<=steps; s++){
+            double f = (steps == 0) ? 0 : s/(double)steps;
+            addSphere(a[0] + f*dx, a[1] + f*dy, a[2] + f*dz, r);
+        }
+    }
+
+    private void addSphere(double cx, double cy, double cz, double r)
+    {
+        // The sphere's image covers pixels whose rays pass within r of the
+        // center; bound it by the projection of its silhouette.
+        double zn = cz - r;
+        double zf = cz + r;
+        if(zf <= 0)
+            return;
+        double zmin = Math.max(zn, 1e-3);
+        double u0 = (cx - r)*KUtils.Firx/((cx - r < 0) ? zmin : zf) + KUtils.Cirx;
+        double u1 = (cx + r)*KUtils.Firx/((cx + r > 0) ? zmin : zf) + KUtils.Cirx;
+        double v0 = (cy - r)*KUtils.Firy/((cy - r < 0) ? zmin : zf) + KUtils.Ciry;
+        double v1 = (cy + r)*KUtils.Firy/((cy + r > 0) ? zmin : zf) + KUtils.Ciry;
+
+        int x0 = Math.max(0, (int)Math.floor((u0 - originX)/stride));
+        int x1 = Math.min(width-1, (int)Math.ceil((u1 - originX)/stride));
+        int y0 = Math.max(0, (int)Math.floor((v0 - originY)/stride));
+        int y1 = Math.min(height-1, (int)Math.ceil((v1 - originY)/stride));
+        if(x0 > x1 || y0 > y1)
+            return;
+
+        float n = (float)zn;
+        float f = (float)zf;
+        double r2 = r*r;
+        for(int y=y0; y<=y1; y++){
+            double ry = KUtils.rayY[originY + y*stride];
+            for(int x=x0; x<=x1; x++){
+                double rx = KUtils.rayX[originX + x*stride];
+                // Distance from the center to the pixel's ray
+                double dd = rx*rx + ry*ry + 1;
+                double t = (rx*cx + ry*cy + cz)/dd;
+                double ex = rx*t - cx, ey = ry*t - cy, ez = t - cz;
+                if(ex*ex + ey*ey + ez*ez > r2)
+                    continue;
+                int i = y*width + x;
+                if(n < near[i])
+                    near[i] = n;
+                if(f > far[i])
+                    far[i] = f;
+            }
+        }
+        if(x0 < minX) minX = x0;
+        if(x1 > maxX) maxX = x1;
+        if(y0 < minY) minY = y0;
+        if(y1 > maxY) maxY = y1;
+    }
+
+    /** Whether point i of the frame the mask was built for is on the arm **/
+    public boolean onArm(PointCloudFrame frame, int i)
+    {
+        float z = frame.z[i];
+        return z >= near[i] && z <= far[i];
+    }
+}
@@ -0,0 +1,178 @@
+package abolt.kinect;
+
+import java.util.*;
+
+/** Running per-pixel depth/color model of the scene, used to avoid redoing
+ *  segmentation work where nothing has changed.
+ *
+ *  The frame is split into square tiles. A tile is marked changed when
+ *  enough of its pixels differ from the model in depth, color or whether
+ *  they have a reading at all, and changed tiles are dilated by one tile
+ *  so the edges between changed and unchanged regions are revisited.
+ *  For pixels in unchanged tiles Segment reuses what it decided last time:
+ *  whether the point survived floor/arm removal and which of its neighbors
+ *  it was joined to. Every refreshInterval frames everything is marked
+ *  changed so cached decisions can not drift too far from the data.
+ *
+ *  The model holds each pixel as it was when its tile was last
+ *  re-segmented, since that is what the cached decisions were made from.
+ *  Pixels that differ in tiles that stay unchanged are not folded in, so
+ *  slow or small changes add up until their tile is re-segmented.
+ **/
+public class BackgroundModel
+{
+    final static double DEPTH_TOL = .01;        // Base depth tolerance [m]
+    final static double DEPTH_TOL_SQ = .01;     // Added per m^2 of depth (kinect noise grows with z^2)
+    final static int COLOR_TOL = 40;            // Summed absolute RGB channel difference
+    final static double CHANGED_FRACTION = .02; // Share of a tile's pixels that must change
+
+    // Bits of edges[i]: whether i was joined to its right / lower neighbor
+    public final static byte RIGHT = 1;
+    public final static byte DOWN = 2;
+
+    int tileSize;
+    int refreshInterval;
+
+    // Layout of the frames the model was built for
+    int width = -1, height = -1, originX, originY, stride;
+    int tilesX, tilesY;
+
+    float[] bgZ;
+    int[] bgRgb;
+    boolean[] bgValid;
+    boolean[] tileChanged;
+    int[] tileCounts;
+    int framesSinceRefresh;
+
+    // Cached segmentation decisions, filled in by Segment
+    public boolean[] kept;
+    public byte[] edges;
+
+    long tilesSeen = 0;
+    long tilesChanged = 0;
+
+    public BackgroundModel(int tileSize, int refreshInterval)
+    {
+        this.tileSize = Math.max(1, tileSize);
+        this.refreshInterval = refreshInterval;
+    }
+
+    /** Compare a frame (before any points have been removed from it) to the
+     ** model, mark the tiles that changed and fold those tiles of the frame
+     ** into the model **/
+    public void update(PointCloudFrame frame)
+    {
+        boolean refresh = false;
+        if(frame.width != width || frame.height != height || frame.originX != originX ||
+           frame.originY != originY || frame.stride != stride){
+            reset(frame);
+            refresh = true;
+        }
+        if(++framesSinceRefresh >= refreshInterval){
+            framesSinceRefresh = 0;
+            refresh = true;
+        }
+
+        Arrays.fill(tileCounts, 0);
+        for(int y=0; y<height; y++){
+            int ty = (y/tileSize)*tilesX;
+            for(int x=0; x<width; x++){
+                int i = y*width + x;
+                if(refresh || differs(frame, i, frame.isValid(i)))
+                    tileCounts[ty + x/tileSize]++;
+            }
+        }
+
+        // Changed tiles, dilated by one tile in each direction
+        Arrays.fill(tileChanged, false);
+        int minCount = Math.max(1, (int)(CHANGED_FRACTION*tileSize*tileSize));
+        for(int ty=0; ty<tilesY; ty++){
+            for(int tx=0; tx<tilesX; tx++){
+                if(tileCounts[ty*tilesX + tx] < minCount && !refresh)
+                    continue;
+                for(int dy=Math.max(0, ty-1); dy<=Math.min(tilesY-1, ty+1); dy++)
+                    for(int dx=Math.max(0, tx-1); dx<=Math.min(tilesX-1, tx+1); dx++)
+                        tileChanged[dy*tilesX + dx] = true;
+            }
+        }
+
+        // Only tiles that will be re-segmented take on the new data
+        for(int ty=0; ty<tilesY; ty++){
+            for(int tx=0; tx<tilesX; tx++){
+                if(!tileChanged[ty*tilesX + tx])
+                    continue;
+                tilesChanged++;
+                int x1 = Math.min(width, (tx+1)*tileSize);
+                int y1 = Math.min(height, (ty+1)*tileSize);
+                for(int y=ty*tileSize; y<y1; y++){
+                    for(int x=tx*tileSize; x<x1; x++){
+                        int i = y*width + x;
+                        bgValid[i] = frame.isValid(i);
+                        bgZ[i] = frame.z[i];
+                        bgRgb[i] = frame.rgb[i];
+                    }
+                }
+            }
+        }
+        tilesSeen += tileChanged.length;
+    }
+
+    private boolean differs(PointCloudFrame frame, int i, boolean valid)
+    {
+        if(valid != bgValid[i])
+            return true;
+        if(!valid)
+            return false;
+        float z = frame.z[i];
+        if(Math.abs(z - bgZ[i]) > DEPTH_TOL + DEPTH_TOL_SQ*z*z)
+            return true;
+        int c1 = frame.rgb[i], c2 = bgRgb[i];
+        int diff = Math.abs(((c1 >> 16) & 0xff) - ((c2 >> 16) & 0xff))
+            + Math.abs(((c1 >> 8) & 0xff) - ((c2 >> 8) & 0xff))
+            + Math.abs((c1 & 0xff) - (c2 & 0xff));
+        return diff > COLOR_TOL;
+    }
+
+    private void reset(PointCloudFrame frame)
+    {
+        width = frame.width;
+        height = frame.height;
+        originX = frame.originX;
+        originY = frame.originY;
+        stride = frame.stride;
+        tilesX = (width + tileSize - 1)/tileSize;
+        tilesY = (height + tileSize - 1)/tileSize;
+
+        int size = width*height;
+        bgZ = new float[size];
+        bgRgb = new int[size];
+        bgValid = new boolean[size];
+        kept = new boolean[size];
+        edges = new byte[size];
+        tileChanged = new boolean[tilesX*tilesY];
+        tileCounts = new int[tilesX*tilesY];
+        framesSinceRefresh = 0;
+    }
+
+    /** Forget all cached decisions, e.g. because the floor plane moved **/
+    public void invalidate()
+    {
+        width = -1;
+    }
+
+    /** Whether Segment can reuse its cached decisions for pixel i **/
+    public boolean unchanged(int i)
+    {
+        int tx = (i % width)/tileSize;
+        int ty = (i / width)/tileSize;
+        return !tileChanged[ty*tilesX + tx];
+    }
+
+    /** Share of tiles that have been re-segmented since the model was made **/
+    public double getChangedFraction()
+    {
+        if(tilesSeen == 0)
+            return 1;
+        return tilesChanged / (double) tilesSeen;
+    }
+}
@@ -0,0 +1,298 @@
+package abolt.kinect;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** RANSAC estimation of the dominant plane (the "floor") in a frame.
+ *
+ *  Rather than testing hypotheses against a fresh random 20% of the frame,
+ *  a fixed random sample of valid points is drawn once and every hypothesis
+ *  is scored against it. The number of hypotheses adapts to the best
+ *  inlier ratio seen so far, batches of hypotheses are scored in parallel,
+ *  and the winning plane is refit to its inliers with least squares.
+ **/
+public class FloorEstimator
+{
+    final static double INLIER_THRESH = .005;
+    final static double MIN_INLIER_FRACTION = 1/6.0;
+    final static double CONFIDENCE = .999;
+    final static int BATCH_SIZE = 64;       // Hypotheses scored per parallel batch
+    final static int TASK_SIZE = 8;         // Hypotheses scored serially per task
+
+    Random rand;
+    float[] sx, sy, sz;
+    int n;
+
+    private FloorEstimator(int maxSamples, Random rand)
+    {
+        this.rand = rand;
+        sx = new float[maxSamples];
+        sy = new float[maxSamples];
+        sz = new float[maxSamples];
+        n = 0;
+    }
+
+    /** Copy up to maxSamples randomly chosen valid points out of a frame.
+     ** The copy is independent of the frame, so it can be used on another
+     ** thread while the frame is modified. **/
+    public static FloorEstimator sample(PointCloudFrame frame, int maxSamples, Random rand)
+    {
+        FloorEstimator fe = new FloorEstimator(maxSamples, rand);
+        int size = frame.size();
+        int numValid = frame.numValid();
+        if(numValid == 0)
+            return fe;
+
+        if(numValid <= maxSamples){
+            for(int i=0; i<size; i++){
+                if(frame.isValid(i))
+                    fe.add(frame, i);
+            }
+        }
+        else{
+            // Rejection sample; valid points are usually most of the frame
+            int tries = 0;
+            while(fe.n < maxSamples && tries++ < 20*maxSamples){
+                int i = rand.nextInt(size);
+                if(frame.isValid(i))
+                    fe.add(frame, i);
+            }
+        }
+        return fe;
+    }
+
+    private void add(PointCloudFrame frame, int i)
+    {
+        sx[n] = frame.x[i];
+        sy[n] = frame.y[i];
+        sz[n] = frame.z[i];
+        n++;
+    }
+
+    public int numSamples()
+    {
+        return n;
+    }
+
+    /** Estimate the plane most of the sampled points lie on.
+        @param maxIterations is an upper bound on the number of hypotheses
+        @return the pqrs coefficients of the plane (px+qy+rz+s=0), or all
+                zeros if no plane had enough support
+    **/
+    public double[] estimate(int maxIterations)
+    {
+        if(n < 3)
+            return new double[4];
+
+        double[] bestPlane = null;
+        int bestFit = 0;
+        int iterations = 0;
+        int needed = maxIterations;
+
+        while(iterations < needed){
+            int batch = Math.min(BATCH_SIZE, needed - iterations);
+
+            // Draw the samples serially so results only depend on rand
+            int[] picks = new int[3*batch];
+            for(int i=0; i<picks.length; i++)
+                picks[i] = rand.nextInt(n);
+
+            double[][] planes = new double[batch][];
+            int[] fits = new int[batch];
+            Segment.getPool().invoke(new ScoreTask(picks, planes, fits, 0, batch, bestFit));
+
+            for(int i=0; i<batch; i++){
+                if(planes[i] != null && fits[i] > bestFit){
+                    bestFit = fits[i];
+                    bestPlane = planes[i];
+                }
+            }
+            iterations += batch;
+
+            // Number of hypotheses needed to have drawn an all-inlier
+            // triple with the requested confidence at the current ratio
+            double w = bestFit / (double) n;
+            double pGood = w*w*w;
+            if(pGood >= 1)
+                break;
+            if(pGood > 0){
+                double est = Math.log(1 - CONFIDENCE)/Math.log(1 - pGood);
+                needed = (int)Math.min(maxIterations, Math.ceil(est));
+            }
+        }
+
+        if(bestPlane == null || bestFit <= n*MIN_INLIER_FRACTION)
+            return new double[4];
+
+        double[] refit = refit(bestPlane);
+        if(refit != null && countInliers(refit, Integer.MAX_VALUE) >= bestFit)
+            return refit;
+        return bestPlane;
+    }
+
+    /** Fraction of the sampled points within INLIER_THRESH of a plane.
+     ** The all zero "no plane" has no inliers. **/
+    public double inlierFraction(double[] plane)
+    {
+        if(n == 0 || (plane[0] == 0 && plane[1] == 0 && plane[2] == 0))
+            return 0;
+        return countInliers(plane, Integer.MAX_VALUE) / (double) n;
+    }
+
+    /** Count inliers, giving up early once the count cannot beat toBeat.
+     ** Planes are assumed to have a unit normal. **/
+    int countInliers(double[] plane, int toBeat)
+    {
+        double p = plane[0], q = plane[1], r = plane[2], s = plane[3];
+        int fit = 0;
+        for(int j=0; j<n; j++){
+            if(fit + (n - j) <= toBeat)
+                return fit;
+            if(Math.abs(p*sx[j] + q*sy[j] + r*sz[j] + s) < INLIER_THRESH)
+                fit++;
+        }
+        return fit;
+    }
+
+    /** Plane through three sampled points with a unit normal, or null if the
+     ** points are (nearly) collinear **/
+    double[] planeThrough(int a, int b, int c)
+    {
+        double ux = sx[b]-sx[a], uy = sy[b]-sy[a], uz = sz[b]-sz[a];
+        double vx = sx[c]-sx[a], vy = sy[c]-sy[a], vz = sz[c]-sz[a];
+        double p = uy*vz - uz*vy;
+        double q = uz*vx - ux*vz;
+        double r = ux*vy - uy*vx;
+        double mag = Math.sqrt(p*p + q*q + r*r);
+        if(mag < 1e-12)
+            return null;
+        p /= mag;
+        q /= mag;
+        r /= mag;
+        return new double[]{p, q, r, -(p*sx[a] + q*sy[a] + r*sz[a])};
+    }
+
+    /** Scores a range of hypotheses from one batch **/
+    class ScoreTask extends RecursiveAction
+    {
+        int[] picks;
+        double[][] planes;
+        int[] fits;
+        int lo, hi, toBeat;
+
+        public ScoreTask(int[] picks, double[][] planes, int[] fits, int lo, int hi, int toBeat)
+        {
+            this.picks = picks;
+            this.planes = planes;
+            this.fits = fits;
+            this.lo = lo;
+            this.hi = hi;
+            this.toBeat = toBeat;
+        }
+
+        protected void compute()
+        {
+            if(hi - lo > TASK_SIZE){
+                int mid = (lo + hi)/2;
+                invokeAll(new ScoreTask(picks, planes, fits, lo, mid, toBeat),
+                          new ScoreTask(picks, planes, fits, mid, hi, toBeat));
+                return;
+            }
+            for(int i=lo; i<hi; i++){
+                double[] plane = planeThrough(picks[3*i], picks[3*i+1], picks[3*i+2]);
+                if(plane == null)
+                    continue;
+                planes[i] = plane;
+                fits[i] = countInliers(plane, toBeat);
+            }
+        }
+    }
+
+    /** Least squares refit of a plane to its inliers: the normal is the
+     ** eigenvector of the inlier covariance with the smallest eigenvalue. **/
+    double[] refit(double[] plane)
+    {
+        double p = plane[0], q = plane[1], r = plane[2], s = plane[3];
+        double cx = 0, cy = 0, cz = 0;
+        int count = 0;
+        for(int j=0; j<n; j++){
+            if(Math.abs(p*sx[j] + q*sy[j] + r*sz[j] + s) < INLIER_THRESH){
+                cx += sx[j];
+                cy += sy[j];
+                cz += sz[j];
+                count++;
+            }
+        }
+        if(count < 3)
+            return null;
+        cx /= count;
+        cy /= count;
+        cz /= count;
+
+        double[][] cov = new double[3][3];
+        for(int j=0; j<n; j++){
+            if(Math.abs(p*sx[j] + q*sy[j] + r*sz[j] + s) < INLIER_THRESH){
+                double dx = sx[j]-cx, dy = sy[j]-cy, dz = sz[j]-cz;
+                cov[0][0] += dx*dx;
+                cov[0][1] += dx*dy;
+                cov[0][2] += dx*dz;
+                cov[1][1] += dy*dy;
+                cov[1][2] += dy*dz;
+                cov[2][2] += dz*dz;
+            }
+        }
+        cov[1][0] = cov[0][1];
+        cov[2][0] = cov[0][2];
+        cov[2][1] = cov[1][2];
+
+        double[] normal = smallestEigenvector(cov);
+        double d = -(normal[0]*cx + normal[1]*cy + normal[2]*cz);
+        return new double[]{normal[0], normal[1], normal[2], d};
+    }
+
+    /** Unit eigenvector of the smallest eigenvalue of a symmetric 3x3
+     ** matrix, by cyclic Jacobi rotations. a is overwritten. **/
+    static double[] smallestEigenvector(double[][] a)
+    {
+        double[][] v = new double[][]{{1,0,0},{0,1,0},{0,0,1}};
+        for(int sweep=0; sweep<50; sweep++){
+            double off = a[0][1]*a[0][1] + a[0][2]*a[0][2] + a[1][2]*a[1][2];
+            if(off < 1e-30)
+                break;
+            for(int pi=0; pi<2; pi++){
+                for(int qi=pi+1; qi<3; qi++){
+                    if(Math.abs(a[pi][qi]) < 1e-30)
+                        continue;
+                    double theta = (a[qi][qi] - a[pi][pi])/(2*a[pi][qi]);
+                    double t = Math.signum(theta)/(Math.abs(theta) + Math.sqrt(theta*theta + 1));
+                    if(theta == 0)
+                        t = 1;
+                    double c = 1/Math.sqrt(t*t + 1);
+                    double sn = t*c;
+                    for(int k=0; k<3; k++){
+                        double akp = a[k][pi], akq = a[k][qi];
+                        a[k][pi] = c*akp - sn*akq;
+                        a[k][qi] = sn*akp + c*akq;
+                    }
+                    for(int k=0; k<3; k++){
+                        double apk = a[pi][k], aqk = a[qi][k];
+                        a[pi][k] = c*apk - sn*aqk;
+                        a[qi][k] = sn*apk + c*aqk;
+                    }
+                    for(int k=0; k<3; k++){
+                        double vkp = v[k][pi], vkq = v[k][qi];
+                        v[k][pi] = c*vkp - sn*vkq;
+                        v[k][qi] = sn*vkp + c*vkq;
+                    }
+                }
+            }
+        }
+
+        int min = 0;
+        for(int i=1; i<3; i++){
+            if(a[i][i] < a[min][min])
+                min = i;
+        }
+        return new double[]{v[0][min], v[1][min], v[2][min]};
+    }
+}
@@ -0,0 +1,124 @@
+package abolt.kinect;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+import abolt.lcmtypes.*;
+
+/** Cheap test for whether a kinect frame shows anything different from the
+ *  last frame that was fully processed. Depth and color are compared on a
+ *  grid of pixels inside the view region. Frames are compared to the last
+ *  accepted frame rather than the previous one, so slow changes still add
+ *  up to a detected change eventually.
+ *
+ *  A frame counts as changed once a few changed samples have a changed
+ *  neighbor on the grid. A lone changed sample is usually sensor noise,
+ *  but even a small block placed, moved or taken away changes several
+ *  neighboring samples.
+ **/
+public class FrameChangeDetector
+{
+    final static int GRID_STEP = 4;             // Spacing of sampled pixels
+    final static int DEPTH_TOL = 10;            // [mm], plus 1% of the depth
+    final static int COLOR_TOL = 48;            // Summed absolute RGB channel difference
+    final static int MIN_ADJACENT = 2;          // Changed samples next to another changed one
+
+    Rectangle region = null;
+    int columns;
+    int[] refDepth;
+    int[] refColor;
+
+    // Samples of the frame being tested, swapped with the reference when
+    // it changed, and whether each sample of the row above changed
+    int[] depth;
+    int[] color;
+    boolean[] changedAbove;
+
+    /** Whether the frame differs from the last accepted one. If it does (or
+     ** there is none yet), the frame becomes the new reference. **/
+    public boolean changed(kinect_status_t ks)
+    {
+        Rectangle view = KUtils.viewRegion;
+        if(region == null || !region.equals(view)){
+            region = new Rectangle(view);
+            columns = (view.width + GRID_STEP - 1)/GRID_STEP;
+            int n = columns*((view.height + GRID_STEP - 1)/GRID_STEP);
+            refDepth = new int[n];
+            refColor = new int[n];
+            depth = new int[n];
+            color = new int[n];
+            changedAbove = new boolean[columns];
+            sample(ks, refDepth, refColor);
+            return true;
+        }
+
+        sample(ks, depth, color);
+
+        Arrays.fill(changedAbove, false);
+        int adjacent = 0;
+        boolean changedLeft = false;
+        for(int j=0, col=0; j<depth.length && adjacent < MIN_ADJACENT; j++, col++){
+            if(col == columns){
+                col = 0;
+                changedLeft = false;
+            }
+            boolean d = differs(depth[j], color[j], refDepth[j], refColor[j]);
+            if(d && (changedLeft || changedAbove[col]))
+                adjacent++;
+            changedLeft = d;
+            changedAbove[col] = d;
+        }
+        if(adjacent < MIN_ADJACENT)
+            return false;
+
+        int[] t = refDepth;
+        refDepth = depth;
+        depth = t;
+        t = refColor;
+        refColor = color;
+        color = t;
+        return true;
+    }
+
+    /** Make a frame the new reference, whether or not it changed **/
+    public void accept(kinect_status_t ks)
+    {
+        if(region == null || !region.equals(KUtils.viewRegion)){
+            changed(ks);
+            return;
+        }
+        sample(ks, refDepth, refColor);
+    }
+
+    /** Make the next frame count as changed no matter what **/
+    public void reset()
+    {
+        region = null;
+    }
+
+    private void sample(kinect_status_t ks, int[] depth, int[] color)
+    {
+        int j = 0;
+        for(int y=region.y; y<region.y + region.height; y+=GRID_STEP){
+            for(int x=region.x; x<region.x + region.width; x+=GRID_STEP, j++){
+                int k = y*kinect_status_t.WIDTH + x;
+                depth[j] = ((ks.depth[2*k + 1]&0xff) << 8) | (ks.depth[2*k]&0xff);
+                color[j] = ((ks.rgb[3*k+0]&0xff) << 0) |
+                           ((ks.rgb[3*k+1]&0xff) << 8) |
+                           ((ks.rgb[3*k+2]&0xff) << 16);
+            }
+        }
+    }
+
+    private static boolean differs(int d1, int c1, int d2, int c2)
+    {
+        if((d1 == 0) != (d2 == 0))
+            return true;
+        if(Math.abs(d1 - d2) > DEPTH_TOL + d2/100)
+            return true;
+        int diff = Math.abs(((c1 >> 16) & 0xff) - ((c2 >> 16) & 0xff))
+            + Math.abs(((c1 >> 8) & 0xff) - ((c2 >> 8) & 0xff))
+            + Math.abs((c1 & 0xff) - (c2 & 0xff));
+        return diff > COLOR_TOL;
+    }
+}
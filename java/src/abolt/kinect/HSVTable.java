@@ -0,0 +1,127 @@
+package abolt.kinect;
+
+/** Hue and saturation of a color, looked up in a table over colors
+ *  quantized to 6 bits per channel instead of being computed with
+ *  Color.RGBtoHSB. Each entry holds the hue and saturation of the center
+ *  of its quantization cell. Quantizing matters most for dark and grayish
+ *  colors, where a step of one channel moves hue and saturation the most,
+ *  so colors whose channels span less than EXACT_CHROMA are computed
+ *  exactly instead. So are reds whose green and blue share a cell: hue
+ *  wraps from 1 to 0 where green and blue are equal, so the cell center
+ *  (where they are) would give 0 for hues just below 1. Everything else
+ *  comes out within about .01 of the exact values. Value is just the
+ *  largest channel, so it is always exact.
+ *
+ *  Channels are passed as red, green and blue explicitly, since the
+ *  feature extractors and the segmenter disagree on which byte of a packed
+ *  color is red.
+ **/
+public class HSVTable
+{
+    final static int BITS = 6;
+    final static int SHIFT = 8 - BITS;
+    final static float SCALE = 65535f;
+    final static int EXACT_CHROMA = 64;
+
+    // Hue in the high 16 bits, saturation in the low 16 bits
+    private static final int[] table = build();
+
+    private static int[] build()
+    {
+        int levels = 1 << BITS;
+        double half = ((1 << SHIFT) - 1)/2.0;
+        int[] t = new int[levels*levels*levels];
+        for(int ri=0; ri<levels; ri++){
+            double r = (ri << SHIFT) + half;
+            for(int gi=0; gi<levels; gi++){
+                double g = (gi << SHIFT) + half;
+                for(int bi=0; bi<levels; bi++){
+                    double b = (bi << SHIFT) + half;
+                    double cmax = Math.max(r, Math.max(g, b));
+                    double cmin = Math.min(r, Math.min(g, b));
+                    double hue = 0, sat = 0;
+                    if(cmax > cmin){
+                        sat = (cmax - cmin)/cmax;
+                        double redc = (cmax - r)/(cmax - cmin);
+                        double greenc = (cmax - g)/(cmax - cmin);
+                        double bluec = (cmax - b)/(cmax - cmin);
+                        if(r == cmax)
+                            hue = bluec - greenc;
+                        else if(g == cmax)
+                            hue = 2.0 + redc - bluec;
+                        else
+                            hue = 4.0 + greenc - redc;
+                        hue /= 6.0;
+                        if(hue < 0)
+                            hue += 1.0;
+                    }
+                    int h = (int)Math.round(hue*SCALE);
+                    int s = (int)Math.round(sat*SCALE);
+                    t[(ri << (2*BITS)) | (gi << BITS) | bi] = (h << 16) | s;
+                }
+            }
+        }
+        return t;
+    }
+
+    /** Packed hue and saturation of a color, to be read with hue() and
+     ** saturation() **/
+    public static int lookup(int r, int g, int b)
+    {
+        int cmax = (r > g) ? r : g;
+        if(b > cmax)
+            cmax = b;
+        int cmin = (r < g) ? r : g;
+        if(b < cmin)
+            cmin = b;
+        if(cmax - cmin < EXACT_CHROMA || (r == cmax && (g >> SHIFT) == (b >> SHIFT)))
+            return exact(r, g, b, cmax, cmin);
+        return table[((r >> SHIFT) << (2*BITS)) | ((g >> SHIFT) << BITS) | (b >> SHIFT)];
+    }
+
+    /** Same arithmetic as Color.RGBtoHSB **/
+    private static int exact(int r, int g, int b, int cmax, int cmin)
+    {
+        if(cmax == cmin)
+            return 0;
+        float sat = ((float)(cmax - cmin))/((float)cmax);
+        float hue = PointCloudFrame.rgbToHue((r << 16) | (g << 8) | b);
+        return (Math.round(hue*SCALE) << 16) | Math.round(sat*SCALE);
+    }
+
+    public static float hue(int hs)
+    {
+        return (hs >>> 16)/SCALE;
+    }
+
+    public static float saturation(int hs)
+    {
+        return (hs & 0xffff)/SCALE;
+    }
+
+    public static float value(int r, int g, int b)
+    {
+        int cmax = (r > g) ? r : g;
+        if(b > cmax)
+            cmax = b;
+        return cmax/255f;
+    }
+
+    /** Hue of a color, for use as a per-pixel kernel **/
+    public static float hue(int r, int g, int b)
+    {
+        return hue(lookup(r, g, b));
+    }
+
+    /** Same as Color.RGBtoHSB(r, g, b, hsv), through the table **/
+    public static float[] toHSV(int r, int g, int b, float[] hsv)
+    {
+        if(hsv == null)
+            hsv = new float[3];
+        int hs = lookup(r, g, b);
+        hsv[0] = hue(hs);
+        hsv[1] = saturation(hs);
+        hsv[2] = value(r, g, b);
+        return hsv;
+    }
+}
@@ -5,6 +5,13 @@ import april.vis.VisCameraManager.CameraPosition;
 
 public interface IBoltCamera {
 	int[] getPixel(double[] cameraPt);
+    /** Same as getPixel, for projecting many points without allocating.
+     ** Fills in pixel and returns true, or returns false where getPixel
+     ** would return null. **/
+    boolean getPixel(double x, double y, double z, int[] pixel);
 	double[] getWorldCoords(double[] cameraPt);
+    /** The 3x4 affine transform getWorldCoords applies, for converting many
+     ** points at once. Must not be modified. **/
+    double[][] getWorldAffine();
     double getHeight(double[] xy);
 }
@@ -47,19 +47,46 @@ public class KUtils
     public static Rectangle viewRegion = new Rectangle(0, 0, kinect_status_t.WIDTH, kinect_status_t.HEIGHT);
     public static double[][] kinectToWorldXForm = null;
 
+    // Point clouds are extracted from every decimation'th pixel in each
+    // direction, either by taking that pixel (stride) or the median depth
+    // of the decimation x decimation block around it.
+    public static int decimation = 1;
+    public static boolean medianDecimation = false;
+
+    // Per-column and per-row ray slopes for the IR camera, so that the
+    // point at pixel (x, y) with depth d is (rayX[x]*d, rayY[y]*d, d)
+    public static float[] rayX = new float[WIDTH];
+    public static float[] rayY = new float[HEIGHT];
+
+    // kinectToWorldXForm folded into a 3x4 affine acting on column vectors.
+    // kinectToWorldXForm is applied to row vectors, so this is its transpose.
+    static double[][] k2wAffine = new double[][]{{1,0,0,0},
+                                                 {0,1,0,0},
+                                                 {0,0,1,0}};
+
+    // Inverse of k2wAffine, taking world coordinates back to the kinect frame
+    static double[][] w2kAffine = new double[][]{{1,0,0,0},
+                                                 {0,1,0,0},
+                                                 {0,0,1,0}};
+
+    static {
+        buildRayTables();
+    }
+
     public static void loadCalibFromConfig(Config config)
     {
         if(config.hasKey("calibration.xform")){
             double[] xform = config.getDoubles("calibration.xform");
         	assert (xform.length == 16);
-            kinectToWorldXForm = new double[4][4];
+            double[][] k2w = new double[4][4];
             for (int i = 0; i < 4; i++) {
                 for (int j = 0; j < 4; j++) {
-                    kinectToWorldXForm[i][j] = xform[4*i + j];
+                    k2w[i][j] = xform[4*i + j];
                 }
             }
+            setKinectToWorldXForm(k2w);
         } else {
-        	kinectToWorldXForm = LinAlg.identity(4);
+        	setKinectToWorldXForm(LinAlg.identity(4));
         }
 
         if(config.hasKey("calibration.borders")){
@@ -68,13 +95,104 @@ public class KUtils
             viewRegion = new Rectangle(borders[0], borders[1],
             		borders[2] - borders[0], borders[3] - borders[1]);
         }
+
+        buildRayTables();
+    }
+
+    /** Set how point clouds are decimated before segmentation
+     *  @param factor is the spacing between sampled pixels (1 = full resolution)
+     *  @param median picks the median depth of each block instead of one pixel
+     **/
+    public static void setDecimation(int factor, boolean median)
+    {
+        decimation = Math.max(1, Math.min(16, factor));
+        medianDecimation = median;
+    }
+
+    /** Set the kinect to world transform (applied to row vectors) and
+     *  rebuild the affines used for bulk conversions. **/
+    public static void setKinectToWorldXForm(double[][] xform)
+    {
+        double[][] inv = LinAlg.inverse(xform);
+        double[][] affine = new double[3][4];
+        double[][] invAffine = new double[3][4];
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 4; j++) {
+                affine[i][j] = xform[j][i];
+                invAffine[i][j] = inv[j][i];
+            }
+        }
+        k2wAffine = affine;
+        w2kAffine = invAffine;
+        kinectToWorldXForm = xform;
+    }
+
+    /** Recompute the ray tables from the current IR intrinsics **/
+    public static void buildRayTables()
+    {
+        float[] rx = new float[WIDTH];
+        float[] ry = new float[HEIGHT];
+        for (int x = 0; x < WIDTH; x++)
+            rx[x] = (float)((x - Cirx) / Firx);
+        for (int y = 0; y < HEIGHT; y++)
+            ry[y] = (float)((y - Ciry) / Firy);
+        rayX = rx;
+        rayY = ry;
+    }
+
+    /** The current kinect to world transform as a 3x4 affine (rows give
+     *  world x, y and z). Replaced, never modified, when the transform
+     *  changes, so callers can hold on to it for a batch of points. **/
+    public static double[][] getWorldAffine()
+    {
+        return k2wAffine;
     }
 
     /** Converts a point in the kinect coordinate frame to world coordinates **/
     public static double[] getWorldCoordinates(double[] kinectCoordinates){
-    	double[] pt = new double[]{kinectCoordinates[0], kinectCoordinates[1], kinectCoordinates[2], 1};
-    	double[] wc = LinAlg.matrixAB(pt, kinectToWorldXForm);
-    	return new double[]{wc[0], wc[1], wc[2]};
+        return getWorldCoordinates(kinectCoordinates[0], kinectCoordinates[1],
+                                   kinectCoordinates[2], new double[3]);
+    }
+
+    /** Converts a point in the kinect coordinate frame to world coordinates,
+     *  writing the result into world (which is returned) **/
+    public static double[] getWorldCoordinates(double x, double y, double z, double[] world){
+        double[][] A = k2wAffine;
+        world[0] = A[0][0]*x + A[0][1]*y + A[0][2]*z + A[0][3];
+        world[1] = A[1][0]*x + A[1][1]*y + A[1][2]*z + A[1][3];
+        world[2] = A[2][0]*x + A[2][1]*y + A[2][2]*z + A[2][3];
+        return world;
+    }
+
+    /** Converts a point in world coordinates back to the kinect coordinate
+     *  frame, writing the result into kinect (which is returned) **/
+    public static double[] getKinectCoordinates(double x, double y, double z, double[] kinect){
+        double[][] A = w2kAffine;
+        kinect[0] = A[0][0]*x + A[0][1]*y + A[0][2]*z + A[0][3];
+        kinect[1] = A[1][0]*x + A[1][1]*y + A[1][2]*z + A[1][3];
+        kinect[2] = A[2][0]*x + A[2][1]*y + A[2][2]*z + A[2][3];
+        return kinect;
+    }
+
+    /** Fill in the world coordinates of every valid point of a frame **/
+    public static void computeWorldCoordinates(PointCloudFrame frame)
+    {
+        double[][] A = k2wAffine;
+        double a00 = A[0][0], a01 = A[0][1], a02 = A[0][2], a03 = A[0][3];
+        double a10 = A[1][0], a11 = A[1][1], a12 = A[1][2], a13 = A[1][3];
+        double a20 = A[2][0], a21 = A[2][1], a22 = A[2][2], a23 = A[2][3];
+
+        float[] x = frame.x, y = frame.y, z = frame.z;
+        float[] wx = frame.wx, wy = frame.wy, wz = frame.wz;
+        for (int i = 0; i < frame.size(); i++) {
+            if (!frame.isValid(i))
+                continue;
+            double px = x[i], py = y[i], pz = z[i];
+            wx[i] = (float)(a00*px + a01*py + a02*pz + a03);
+            wy[i] = (float)(a10*px + a11*py + a12*pz + a13);
+            wz[i] = (float)(a20*px + a21*py + a22*pz + a23);
+        }
+        frame.hasWorld = true;
     }
 
     public static ArrayList<double[]> k2wConvert(ArrayList<double[]> points)
@@ -137,8 +255,8 @@ public class KUtils
 
 
         double[] xyzc = new double[4];
-        xyzc[0] = (pixel_x - Cirx) * depth / Firx;
-        xyzc[1] = (pixel_y - Ciry) * depth / Firy;
+        xyzc[0] = rayX[pixel_x] * depth;
+        xyzc[1] = rayY[pixel_y] * depth;
         xyzc[2] = depth;
         xyzc[3] = c;
         return xyzc;
@@ -227,7 +227,7 @@ class KinectCalibrator // implements LCMSubscriber
     	// Overall transform is k2wTranslate * inv(w2kTransform) * wTranslate
     	// (translate to the world origin, then transform to the world basis, then translate within the world)
     	double[][] k2wTransform = LinAlg.matrixAB(LinAlg.matrixAB(k2wTranslate, LinAlg.inverse(w2kTransform)), wTranslate);
-    	KUtils.kinectToWorldXForm = k2wTransform;
+    	KUtils.setKinectToWorldXForm(k2wTransform);
 
     	// Write the file out
     	try{
@@ -11,10 +11,11 @@ import lcm.lcm.LCM;
 import lcm.lcm.LCMDataInputStream;
 import lcm.lcm.LCMSubscriber;
 
+import april.jmat.LinAlg;
 import april.vis.*;
 
 import abolt.bolt.*;
-import abolt.classify.ColorFeatureExtractor;
+import abolt.classify.FeatureStage;
 import abolt.lcmtypes.*;
 import abolt.objects.*;
 import abolt.util.*;
@@ -24,18 +25,38 @@ public class KinectCamera implements IBoltCamera, LCMSubscriber {
     final static int K_HEIGHT = kinect_status_t.HEIGHT;
 
      private final static double darkThreshold = .35;
+    final static int FORCE_REFRESH_FRAMES = 30;   // Fully process at least every n frames
 
     // LCM
     static LCM lcm = LCM.getSingleton();
 
     private Segment segment;
-    private kinect_status_t kinectData = null;
-    private ArrayList<double[]> pointCloudData = null;
+    private volatile kinect_status_t kinectData = null;
+    private PointCloudFrame pointCloudFrame = null;
+
+    // Frames are processed on their own thread. The LCM callback only drops
+    // the newest kinect_status_t in this single slot, replacing (and counting
+    // as dropped) any frame the perception thread has not gotten to yet.
+    private Object mailboxLock = new Object();
+    private kinect_status_t pendingFrame = null;
+    private long framesReceived = 0;
+    private long framesDropped = 0;
+    private PerceptionThread perceptionThread;
+
+    // Frames that look the same as the last processed one are not
+    // segmented again; the objects from that frame stay as they are.
+    private FrameChangeDetector changeDetector = new FrameChangeDetector();
+    private volatile boolean forceRefresh = false;
+    private int framesSinceRefresh = 0;
+    private long framesProcessed = 0;
+    private long framesSkipped = 0;
 
     public KinectCamera(){
     	//segment = new Segment((int)(KUtils.viewRegion.width),
         //        (int)(KUtils.viewRegion.height));
         segment = Segment.getSingleton();
+        perceptionThread = new PerceptionThread();
+        perceptionThread.start();
     	lcm.subscribe("KINECT_STATUS", this);
     	lcm.subscribe("ROBOT_ACTION", this);
         lcm.subscribe("BOLT_ARM_COMMAND", this);
@@ -44,11 +65,90 @@ public class KinectCamera implements IBoltCamera, LCMSubscriber {
     public KinectCamera(VisWorld.Buffer vb){
         segment = Segment.getSingleton();
         segment.vb = vb;
+        perceptionThread = new PerceptionThread();
+        perceptionThread.start();
     	lcm.subscribe("KINECT_STATUS", this);
     	lcm.subscribe("ROBOT_ACTION", this);
         lcm.subscribe("BOLT_ARM_COMMAND", this);
     }
 
+    /** Waits for the newest frame in the mailbox and runs the perception
+     *  pipeline on it. Frames that arrive while one is being processed
+     *  overwrite each other, so we always work on the latest one. **/
+    class PerceptionThread extends Thread
+    {
+        public PerceptionThread()
+        {
+            super("KinectPerception");
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            while (true) {
+                kinect_status_t ks;
+                synchronized(mailboxLock) {
+                    while (pendingFrame == null) {
+                        try {
+                            mailboxLock.wait();
+                        } catch (InterruptedException ex) {
+                        }
+                    }
+                    ks = pendingFrame;
+                    pendingFrame = null;
+                }
+                try {
+                    processFrame(ks);
+                } catch (RuntimeException ex) {
+                    // Lose this frame, not the thread. The next frame is
+                    // processed in full, since the change detector may
+                    // already have taken this one as its reference.
+                    ex.printStackTrace();
+                    forceRefresh = true;
+                }
+            }
+        }
+    }
+
+    /** Number of KINECT_STATUS frames handed to the perception thread **/
+    public long getFramesReceived()
+    {
+        synchronized(mailboxLock) {
+            return framesReceived;
+        }
+    }
+
+    /** Number of frames replaced in the mailbox before they were processed **/
+    public long getFramesDropped()
+    {
+        synchronized(mailboxLock) {
+            return framesDropped;
+        }
+    }
+
+    /** Number of frames that were segmented and passed on to the objects **/
+    public long getFramesProcessed()
+    {
+        synchronized(mailboxLock) {
+            return framesProcessed;
+        }
+    }
+
+    /** Number of frames skipped because the scene had not changed **/
+    public long getFramesSkipped()
+    {
+        synchronized(mailboxLock) {
+            return framesSkipped;
+        }
+    }
+
+    /** Make sure the next frame is fully processed even if it looks the
+     *  same as the last one (e.g. because the tracker's state changed) **/
+    public void requestRefresh()
+    {
+        forceRefresh = true;
+    }
+
 
     /** Use the most recent frame from the kinect to extract a 3D point cloud
     and map it to the frame of the arm. **/
@@ -79,6 +179,112 @@ public class KinectCamera implements IBoltCamera, LCMSubscriber {
 		return extractPointCloudData(kinectData);
 	}
 
+    /** Same as extractPointCloudData, but fills a pooled frame instead of
+     *  allocating a double[] per point. Pixels with no depth reading are
+     *  left invalid. If KUtils.decimation is above 1 only every
+     *  decimation'th pixel is used in each direction (see KUtils.setDecimation).
+     *  The caller owns the returned frame and must release it. **/
+	public static PointCloudFrame extractPointCloudFrame(kinect_status_t kinectData)
+	{
+        int s = KUtils.decimation;
+        int minX = (int) KUtils.viewRegion.getMinX();
+        int minY = (int) KUtils.viewRegion.getMinY();
+        int maxX = (int) KUtils.viewRegion.getMaxX();
+        int maxY = (int) KUtils.viewRegion.getMaxY();
+        PointCloudFrame frame = PointCloudFrame.acquire((KUtils.viewRegion.width + s - 1)/s,
+                                                        (KUtils.viewRegion.height + s - 1)/s);
+        frame.originX = minX;
+        frame.originY = minY;
+        frame.stride = s;
+        if(kinectData == null)
+            return frame;
+        frame.utime = kinectData.utime;
+
+        boolean median = KUtils.medianDecimation && s > 1;
+        int[] block = new int[s*s];
+        int i = 0;
+	    for (int y = minY; y < maxY; y += s) {
+	        for (int x = minX; x < maxX; x += s, i++) {
+                int k = y * kinect_status_t.WIDTH + x;
+                if(median)
+                    k = medianDepthPixel(kinectData, x, y, Math.min(x+s, maxX), Math.min(y+s, maxY), block);
+                if(k >= 0)
+                    setPixel(frame, i, k, kinectData);
+	        }
+	    }
+        frame.hasHue = true;
+	    return frame;
+	}
+
+    private static int rawDepth(kinect_status_t kinectData, int k)
+    {
+        return ((kinectData.depth[2*k + 1]&0xff) << 8) | (kinectData.depth[2*k]&0xff);
+    }
+
+    /** Fill in index i of a frame from kinect pixel k, unless k has no depth **/
+    private static void setPixel(PointCloudFrame frame, int i, int k, kinect_status_t kinectData)
+    {
+        int d = rawDepth(kinectData, k);
+        if(d == 0)
+            return;
+        int x = k % kinect_status_t.WIDTH;
+        int y = k / kinect_status_t.WIDTH;
+        float depth = d / 1000.0f;
+        int c = 0xff000000 |
+            ((kinectData.rgb[3*k+0]&0xff) << 0) |
+            ((kinectData.rgb[3*k+1]&0xff) << 8) |
+            ((kinectData.rgb[3*k+2]&0xff) << 16);
+        frame.set(i, KUtils.rayX[x] * depth, KUtils.rayY[y] * depth, depth, c);
+        frame.hue[i] = PointCloudFrame.rgbToHue(c);
+    }
+
+    /** Find the pixel in [x0, x1) x [y0, y1) holding the median of the
+     *  block's nonzero depths, so the point keeps a real pixel's position
+     *  and color. Returns -1 if no pixel in the block has depth. **/
+    private static int medianDepthPixel(kinect_status_t kinectData, int x0, int y0,
+                                        int x1, int y1, int[] block)
+    {
+        int n = 0;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                int k = y * kinect_status_t.WIDTH + x;
+                int d = rawDepth(kinectData, k);
+                if (d != 0)
+                    block[n++] = (d << 12) | ((y - y0) << 6) | (x - x0);
+            }
+        }
+        if (n == 0)
+            return -1;
+        // Blocks are tiny, so an insertion sort is plenty
+        for (int a = 1; a < n; a++) {
+            int v = block[a];
+            int b = a - 1;
+            while (b >= 0 && block[b] > v) {
+                block[b+1] = block[b];
+                b--;
+            }
+            block[b+1] = v;
+        }
+        int m = block[n/2];
+        return (y0 + ((m >> 6) & 0x3f)) * kinect_status_t.WIDTH + (x0 + (m & 0x3f));
+    }
+
+    /** Get the most recent segmented frame, retained for the caller (who
+     *  must release it), or null if none has been processed yet. **/
+    private synchronized PointCloudFrame latestFrame()
+    {
+        if(pointCloudFrame != null)
+            pointCloudFrame.retain();
+        return pointCloudFrame;
+    }
+
+    private synchronized void setLatestFrame(PointCloudFrame frame)
+    {
+        if(pointCloudFrame != null)
+            pointCloudFrame.release();
+        pointCloudFrame = frame;
+    }
+
 	public BufferedImage getKinectImage(kinect_status_t kinectData){
     	if(kinectData == null){
     		return new BufferedImage(10, 10, BufferedImage.TYPE_3BYTE_BGR);
@@ -118,33 +324,83 @@ public class KinectCamera implements IBoltCamera, LCMSubscriber {
         buffer.setDrawOrder(-10);
     }
 
+    /** Segment a frame, track the objects in it and hand them off to the
+     *  object manager. Runs on the perception thread. If the scene looks
+     *  the same as in the last processed frame, the objects from that frame
+     *  are only marked as seen at this frame's time. **/
+    private void processFrame(kinect_status_t ks)
+    {
+        kinectData = ks;
+        boolean changed = changeDetector.changed(ks);
+        boolean refresh = forceRefresh || ++framesSinceRefresh >= FORCE_REFRESH_FRAMES;
+        if(!changed && !refresh){
+            segment.tracker.touch(ks.utime);
+            synchronized(mailboxLock){
+                framesSkipped++;
+            }
+            return;
+        }
+        if(!changed)
+            changeDetector.accept(ks);
+        forceRefresh = false;
+        framesSinceRefresh = 0;
+        synchronized(mailboxLock){
+            framesProcessed++;
+        }
+
+        PointCloudFrame frame = extractPointCloudFrame(kinectData);
+        boolean hasPoints = frame.numValid() > 0;
+        boolean published = false;
+        try {
+            if(hasPoints)
+                segment.segmentFrame(frame);
+            // getHeight reads the latest frame on other threads, so it is
+            // only published once segmentation has stopped invalidating
+            // points in it and its world coordinates are filled in
+            if(!frame.hasWorld)
+                KUtils.computeWorldCoordinates(frame);
+            setLatestFrame(frame);
+            published = true;
+        } finally {
+            if(!published)
+                frame.release();
+        }
+        if(hasPoints){
+            // Feature stage: compute every object's features now, before
+            // anyone else holds on to the objects
+            FeatureStage.getSingleton().extract(segment.objects.values());
+            synchronized(segment.objects){
+                HashMap<Integer, ObjectInfo> objInfoList = new HashMap<Integer, ObjectInfo>();
+                for(ObjectInfo info : segment.objects.values()){
+                    // The frame goes back to the pool once the next one is
+                    // segmented, while the objects are read from other
+                    // threads for much longer, so they get their own copy
+                    info.detach();
+                    objInfoList.put(info.repID, info);
+                }
+                //Bolt.getObjectManager().updateObjects(objInfoList);
+                BoltObjectManager.getSingleton().updateObjects(objInfoList);
+            }
+        }
+    }
+
 	@Override
     public void messageReceived(LCM lcm, String channel, LCMDataInputStream ins)
     {
 		if(channel.equals("KINECT_STATUS")){
+            kinect_status_t ks;
             try {
-                kinectData = new kinect_status_t(ins);
+                ks = new kinect_status_t(ins);
             } catch (IOException e) {
                 e.printStackTrace();
                 return;
             }
-            pointCloudData = extractPointCloudData(kinectData);
-            if(pointCloudData.size() > 0){
-                segment.segmentFrame(pointCloudData,
-                                     KUtils.viewRegion.width,
-                                     KUtils.viewRegion.height);
-                synchronized(segment.objects){
-                	HashMap<Integer, ObjectInfo> objInfoList = new HashMap<Integer, ObjectInfo>();
-                	for(ObjectInfo info : segment.objects.values()){
-                		ArrayList<Double> colorFeatures = ColorFeatureExtractor.getFeatures(info);
-        	        	//if(colorFeatures.get(0) > darkThreshold || colorFeatures.get(1) > darkThreshold ||
-        	        	//		colorFeatures.get(2) > darkThreshold){
-        	        		objInfoList.put(info.repID, info);
-                            //}
-                    }
-                	//Bolt.getObjectManager().updateObjects(objInfoList);
-                    BoltObjectManager.getSingleton().updateObjects(objInfoList);
-                }
+            synchronized(mailboxLock){
+                framesReceived++;
+                if(pendingFrame != null)
+                    framesDropped++;
+                pendingFrame = ks;
+                mailboxLock.notify();
             }
         }
         else if(channel.equals("ROBOT_ACTION")){
@@ -162,6 +418,7 @@ public class KinectCamera implements IBoltCamera, LCMSubscriber {
                 }
                 else if(action.equals("FAILURE"))
                     segment.tracker.armFailed();
+                requestRefresh();
             }catch(IOException e){
                 e.printStackTrace();
                 return;
@@ -170,8 +427,10 @@ public class KinectCamera implements IBoltCamera, LCMSubscriber {
         else if(channel.equals("BOLT_ARM_COMMAND")){
             try{
                 bolt_arm_command_t command = new bolt_arm_command_t(ins);
-                if(command.action.contains("RESET"))
+                if(command.action.contains("RESET")){
                     segment.tracker.armFailed();
+                    requestRefresh();
+                }
             }catch(IOException e){
                 e.printStackTrace();
                 return;
@@ -185,16 +444,46 @@ public class KinectCamera implements IBoltCamera, LCMSubscriber {
 		return new int[]{(int) Math.round(pixel[0]), (int) Math.round(pixel[1])};
 	}
 
+	@Override
+	public boolean getPixel(double x, double y, double z, int[] pixel) {
+		pixel[0] = (int) Math.round(x * KUtils.Firx / z + KUtils.Cirx);
+		pixel[1] = (int) Math.round(y * KUtils.Firy / z + KUtils.Ciry);
+		return true;
+	}
+
 	@Override
 	public double[] getWorldCoords(double[] cameraPt) {
 		return KUtils.getWorldCoordinates(cameraPt);
 	}
 
+	@Override
+	public double[][] getWorldAffine() {
+		return KUtils.getWorldAffine();
+	}
+
     @Override
     public double getHeight(double[] xy)
     {
-        if (pointCloudData == null)
+        PointCloudFrame frame = latestFrame();
+        if (frame == null)
             return 0;
-        return BoltUtil.getZAt(KUtils.k2wConvert(pointCloudData), xy);
+
+        // Same as BoltUtil.getZAt over the frame in world coordinates. The
+        // frame is only published once they are computed (see processFrame)
+        // and is not modified after that.
+        double nearestZ = 0;
+        double minDist = Double.MAX_VALUE;
+        double MAX_DIST = 0.02; // Point should be within 2 cm of sample request
+        for (int i = 0; i < frame.size(); i++) {
+            if (!frame.isValid(i))
+                continue;
+            double dist = Math.sqrt(LinAlg.sq(xy[0]-frame.wx[i]) + LinAlg.sq(xy[1]-frame.wy[i]));
+            if (dist < MAX_DIST && dist < minDist) {
+                minDist = dist;
+                nearestZ = frame.wz[i];
+            }
+        }
+        frame.release();
+        return nearestZ;
     }
 }
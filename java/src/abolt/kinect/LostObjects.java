@@ -0,0 +1,125 @@
+package abolt.kinect;
+
+import java.util.*;
+
+/** Objects the tracker has recently lost sight of, keyed by repID.
+ *
+ *  Objects are lost in time order, so they sit in a queue ordered by when
+ *  they were lost and expiring old ones only looks at the front of it.
+ *  Entries removed by repID are left in the queue and skipped when they
+ *  reach the front. Objects are also bucketed into a uniform XY grid so
+ *  that re-acquisition only has to look at lost objects near a new one.
+ **/
+public class LostObjects
+{
+    static class Entry
+    {
+        ObjectInfo info;
+        long utime;
+        Long cell;
+
+        Entry(ObjectInfo info, long utime, Long cell)
+        {
+            this.info = info;
+            this.utime = utime;
+            this.cell = cell;
+        }
+    }
+
+    double cellSize;
+    private HashMap<Integer, Entry> byRepID = new HashMap<Integer, Entry>();
+    private ArrayDeque<Entry> byTime = new ArrayDeque<Entry>();
+    private HashMap<Long, ArrayList<Entry>> grid = new HashMap<Long, ArrayList<Entry>>();
+
+    /** @param cellSize should be the largest distance a lost object can be
+     **        re-acquired from **/
+    public LostObjects(double cellSize)
+    {
+        this.cellSize = cellSize;
+    }
+
+    public int size()
+    {
+        return byRepID.size();
+    }
+
+    public ObjectInfo get(int repID)
+    {
+        Entry e = byRepID.get(repID);
+        return (e == null) ? null : e.info;
+    }
+
+    public Collection<ObjectInfo> values()
+    {
+        ArrayList<ObjectInfo> list = new ArrayList<ObjectInfo>(byRepID.size());
+        for(Entry e : byRepID.values())
+            list.add(e.info);
+        return list;
+    }
+
+    /** Remember an object lost at utime **/
+    public void add(ObjectInfo info, long utime)
+    {
+        remove(info.repID);
+        double[] c = info.getCenter();
+        Entry e = new Entry(info, utime, cell(c[0], c[1]));
+        byRepID.put(info.repID, e);
+        byTime.addLast(e);
+        ArrayList<Entry> bucket = grid.get(e.cell);
+        if(bucket == null){
+            bucket = new ArrayList<Entry>();
+            grid.put(e.cell, bucket);
+        }
+        bucket.add(e);
+    }
+
+    /** Forget the object with this repID, if it is here **/
+    public ObjectInfo remove(int repID)
+    {
+        Entry e = byRepID.remove(repID);
+        if(e == null)
+            return null;
+        ArrayList<Entry> bucket = grid.get(e.cell);
+        bucket.remove(e);
+        if(bucket.isEmpty())
+            grid.remove(e.cell);
+        return e.info;
+    }
+
+    /** Forget objects lost at or before the given time **/
+    public void expire(long before)
+    {
+        while(!byTime.isEmpty() && byTime.peekFirst().utime <= before){
+            Entry e = byTime.removeFirst();
+            if(byRepID.get(e.info.repID) == e)
+                remove(e.info.repID);
+        }
+    }
+
+    /** Lost objects in the grid cells around (x, y), which includes every
+     ** lost object within cellSize of it **/
+    public void addNearby(double x, double y, Collection<ObjectInfo> out)
+    {
+        long cx = (long)Math.floor(x/cellSize);
+        long cy = (long)Math.floor(y/cellSize);
+        for(long dx=-1; dx<=1; dx++){
+            for(long dy=-1; dy<=1; dy++){
+                ArrayList<Entry> bucket = grid.get(key(cx+dx, cy+dy));
+                if(bucket == null)
+                    continue;
+                for(Entry e : bucket)
+                    out.add(e.info);
+            }
+        }
+    }
+
+    private Long cell(double x, double y)
+    {
+        return key((long)Math.floor(x/cellSize), (long)Math.floor(y/cellSize));
+    }
+
+    private static Long key(long cx, long cy)
+    {
+        return (cx << 32) ^ (cy & 0xffffffffL);
+    }
+}
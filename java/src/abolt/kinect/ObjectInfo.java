@@ -27,30 +27,75 @@ public class ObjectInfo{
     public int ufsID;
     private double[] center;
     private int[] avgColor; // Red, Green, Blue
-    public int[] sumColor;
-    public BufferedImage image = null;
     public Rectangle projBBox = null;
     public ISimBoltObject createdFrom = null;
 
-    public ArrayList<double[]> points;
+    private ArrayList<double[]> points = null;   // Built on demand by getPoints()
     private HashMap<FeatureCategory, ArrayList<Double> > features;
 
+    // Frame this object was segmented from and the indices of its points in
+    // it. Frames are never modified once segmented; an object that needs
+    // its own copy of its points (see detach) gets a new frame instead.
+    public PointCloudFrame frame;
+    public int[] indices;
+    public int numPoints;
+    private boolean detached = false;
+
+    // Running statistics over the points, kept up to date by update()
+    public PointStats stats = new PointStats();
+
+    // Classifications of the features, valid for one classifier model version
+    private HashMap<FeatureCategory, Classifications> classifications =
+        new HashMap<FeatureCategory, Classifications>();
+    private long classificationVersion = -1;
+
+    // What the object looked like when the features it carries were
+    // computed: point count, bounding box and mean color, laid out as in
+    // cacheBasis(). Carried along with inherited features, so an object
+    // is always compared to the one the features came from rather than
+    // just to the previous frame. Null while the features are its own.
+    private double[] cacheBasis = null;
+
+    // The object this one continues in the previous frame, if tracking
+    // matched it to one, and for how many frames each category's features
+    // have been carried over from it rather than recomputed
+    public ObjectInfo previous = null;
+    private HashMap<FeatureCategory, Integer> featureAges =
+        new HashMap<FeatureCategory, Integer>();
+
     public ObjectInfo(){
         center = null;
     	features = new HashMap<FeatureCategory, ArrayList<Double> >();
     }
 
-    /** Create a new object with info about it. Objects begin with a single point.**/
-    public ObjectInfo(int color, int id, double[] point)
+    /** Create a new object with info about it. Objects begin with a single
+     *  point, given as an index into the frame they were segmented from.**/
+    public ObjectInfo(int color, int id, PointCloudFrame frame, int index)
     {
         this.color = color;
         this.ufsID = id;
+        this.frame = frame;
 
-        Color c = new Color((int) point[3]);
-        sumColor = new int[]{c.getRed(), c.getGreen(), c.getBlue()};
-        points = new ArrayList<double[]>();
-        points.add(point);
+        indices = new int[64];
+        numPoints = 0;
     	features = new HashMap<FeatureCategory, ArrayList<Double>>();
+        update(index);
+    }
+
+    /** Create an object out of every valid point in a frame **/
+    public ObjectInfo(int color, int id, PointCloudFrame frame)
+    {
+        this.color = color;
+        this.ufsID = id;
+        this.frame = frame;
+
+        indices = new int[Math.max(frame.size(), 1)];
+        numPoints = 0;
+    	features = new HashMap<FeatureCategory, ArrayList<Double>>();
+        for(int i=0; i<frame.size(); i++){
+            if(frame.isValid(i))
+                update(i);
+        }
     }
 
     public void createRepID()
@@ -58,48 +103,204 @@ public class ObjectInfo{
         this.repID = SimUtil.nextID();
     }
 
-    /** Add a new point to this object. **/
-    public void update(double[] point)
+    /** Add a new point to this object by its index in the frame. **/
+    public void update(int index)
     {
-        Color c = new Color((int)point[3]);
-        sumColor[0] += c.getRed();
-        sumColor[1] += c.getGreen();
-        sumColor[2] += c.getBlue();
+        stats.add(frame, index);
+        if(numPoints == indices.length)
+            indices = Arrays.copyOf(indices, indices.length*2);
+        indices[numPoints++] = index;
+        points = null;
+    }
 
-        this.points.add(point);
+    /** The object's points as (x, y, z, rgb), copied out of the frame the
+     *  first time they are asked for. Prefer reading frame and indices. **/
+    public ArrayList<double[]> getPoints()
+    {
+        if(points == null){
+            ArrayList<double[]> list = new ArrayList<double[]>(numPoints);
+            for(int i=0; i<numPoints; i++)
+                list.add(frame.getPoint(indices[i]));
+            points = list;
+        }
+        return points;
     }
 
-    public ArrayList<Double> getFeatures(FeatureCategory cat){
-    	if(features.containsKey(cat)){
-    		return features.get(cat);
-    	} else {
-    		ArrayList<Double> fts = Features.getFeatures(cat, points);
-    		features.put(cat, fts);
-    		return fts;
-    	}
+    /** Copy this object's points out of the shared frame into a private
+     *  one, so the object can outlive (or modify) the frame it came from.
+     *  Every object is detached before it leaves the perception thread,
+     *  since the shared frame is recycled once the next one is segmented.**/
+    public void detach()
+    {
+        if(detached || frame == null)
+            return;
+        copyFrame(0, 0, 0);
+        detached = true;
+    }
+
+    /** Replace frame with a tight copy of this object's points, moved by
+     *  (dx, dy, dz). World coordinates only survive if nothing moved. **/
+    private void copyFrame(double dx, double dy, double dz)
+    {
+        boolean moved = (dx != 0 || dy != 0 || dz != 0);
+        PointCloudFrame copy = PointCloudFrame.allocate(Math.max(numPoints, 1), 1);
+        for(int i=0; i<numPoints; i++){
+            int j = indices[i];
+            copy.set(i, frame.x[j] + dx, frame.y[j] + dy, frame.z[j] + dz, frame.rgb[j]);
+            copy.hue[i] = frame.hue[j];
+            copy.wx[i] = frame.wx[j];
+            copy.wy[i] = frame.wy[j];
+            copy.wz[i] = frame.wz[j];
+            indices[i] = i;
+        }
+        copy.hasHue = frame.hasHue;
+        copy.hasWorld = frame.hasWorld && !moved;
+        copy.utime = frame.utime;
+        frame = copy;
+        points = null;
+    }
+
+    /** Features of a category as computed by the feature stage, or null if
+     *  there are none (e.g. the extractor was skipped for being over budget).
+     *  Never runs an extractor itself. **/
+    public synchronized ArrayList<Double> getFeatures(FeatureCategory cat){
+        return features.get(cat);
+    }
+
+    /** Run the extractor of a category unless its features are in already.
+     *  Null is not cached, since an extractor that is disabled for being
+     *  over budget may be enabled again. **/
+    private void extractFeatures(FeatureCategory cat, FeatureInputs inputs){
+        synchronized(this){
+            if(features.containsKey(cat))
+                return;
+        }
+        ArrayList<Double> fts = Features.getFeatures(cat, this, inputs);
+        if(fts != null){
+            synchronized(this){
+                if(!features.containsKey(cat))
+                    features.put(cat, fts);
+            }
+        }
+    }
+
+    /** Compute the features of every category that are not in yet, sharing
+     *  intermediate results (such as the projected image) between them.
+     *  Categories that are downsampled (see Features.getInterval) take the
+     *  previous frame's features instead, until they get too old. **/
+    public void computeFeatures(FeatureCategory[] cats)
+    {
+        FeatureInputs inputs = new FeatureInputs(this);
+        for(FeatureCategory cat : cats){
+            int interval = Features.getInterval(cat);
+            ObjectInfo prev = previous;
+            if(interval > 1 && prev != null){
+                ArrayList<Double> prevFeatures;
+                int age;
+                synchronized(prev){
+                    prevFeatures = prev.features.get(cat);
+                    Integer prevAge = prev.featureAges.get(cat);
+                    age = (prevAge == null) ? 1 : prevAge + 1;
+                }
+                if(prevFeatures != null && age < interval){
+                    synchronized(this){
+                        if(!features.containsKey(cat)){
+                            features.put(cat, prevFeatures);
+                            featureAges.put(cat, age);
+                        }
+                    }
+                    continue;
+                }
+            }
+            extractFeatures(cat, inputs);
+        }
     }
     
-    public void addFeatures(FeatureCategory cat, ArrayList<Double> features){
+    public synchronized void addFeatures(FeatureCategory cat, ArrayList<Double> features){
 		this.features.put(cat, features);
+		classifications.remove(cat);
 	}
 
-    /** Get the center of the object (mean x, y,z). **/
+    /** Cached classification of the features in a category, or null if
+     *  there is none for this version of the classifier models. **/
+    public synchronized Classifications getClassifications(FeatureCategory cat, long version)
+    {
+        if(version != classificationVersion)
+            return null;
+        return classifications.get(cat);
+    }
+
+    public synchronized void putClassifications(FeatureCategory cat, long version,
+                                                Classifications cs)
+    {
+        if(version != classificationVersion){
+            classifications.clear();
+            classificationVersion = version;
+        }
+        classifications.put(cat, cs);
+    }
+
+    /** [count, xmin, ymin, zmin, xmax, ymax, zmax, r, g, b] of the object
+     *  the features came from **/
+    private synchronized double[] cacheBasis()
+    {
+        if(cacheBasis != null)
+            return cacheBasis;
+        double[] basis = new double[10];
+        basis[0] = numPoints;
+        System.arraycopy(stats.getBoundingBox(), 0, basis, 1, 6);
+        System.arraycopy(stats.getColorMean(), 0, basis, 7, 3);
+        return basis;
+    }
+
+    /** Take over the features and classifications already computed for the
+     *  object this one continues (the same track in an earlier frame), as
+     *  long as it still looks the same as the object they were computed
+     *  for: its point count, bounding box and mean color must all be within
+     *  the given tolerances. Comparing to that object rather than to prev
+     *  keeps slow drift from carrying features along forever.
+     *  @param countTol is the largest allowed relative change in point count
+     *  @param bboxTol is the largest allowed move of any bounding box face [m]
+     *  @param colorTol is the largest allowed change of a mean color channel [0-255]
+     *  @return whether the cache was taken over
+     **/
+    public boolean inheritCache(ObjectInfo prev, double countTol, double bboxTol, double colorTol)
+    {
+        if(prev == null || prev == this || prev.numPoints == 0 || numPoints == 0)
+            return false;
+        double[] basis = prev.cacheBasis();
+        if(Math.abs(numPoints - basis[0]) > countTol*basis[0])
+            return false;
+        double[] bb = stats.getBoundingBox();
+        for(int i=0; i<bb.length; i++){
+            if(Math.abs(bb[i] - basis[1+i]) > bboxTol)
+                return false;
+        }
+        double[] color = stats.getColorMean();
+        for(int i=0; i<color.length; i++){
+            if(255*Math.abs(color[i] - basis[7+i]) > colorTol)
+                return false;
+        }
+
+        synchronized(prev){
+            synchronized(this){
+                features.putAll(prev.features);
+                featureAges.putAll(prev.featureAges);
+                classifications = new HashMap<FeatureCategory, Classifications>(prev.classifications);
+                classificationVersion = prev.classificationVersion;
+                cacheBasis = basis;
+            }
+        }
+        return true;
+    }
+
+    /** Get the center of the object (center of its bounding box). **/
     public double[] getCenter()
     {
         if(center == null){
             center = new double[3];
-            double[] min = new double[]{1000, 1000, 1000};
-            double[] max = new double[]{-1000, -1000, -1000};
-            for(double[] p : points){
-                for(int i=0; i<3; i++){
-                    if(p[i]<min[i])
-                        min[i] = p[i];
-                    if(p[i] > max[i])
-                        max[i] = p[i];
-                }
-            }
             for(int i=0; i<3; i++){
-                center[i] = (min[i]+max[i])/2.0;
+                center[i] = (stats.min[i]+stats.max[i])/2.0;
             }
             // For Aaron
             center = Bolt.getCamera().getWorldCoords(center);
@@ -111,14 +312,15 @@ public class ObjectInfo{
 
     public void resetCenter(double[] newCenter)
     {
-        // Change the locationof all the points in the object
+        // Change the locationof all the points in the object. Frames are
+        // never modified, so the moved points go into a new one.
         double[] translation = new double[3];
         for(int i=0; i<translation.length; i++){
             translation[i] = newCenter[i]-center[i];
         }
-        for(double[] p : points)
-            for(int i=0; i<translation.length; i++)
-                p[i] += translation[i];
+        copyFrame(translation[0], translation[1], translation[2]);
+        detached = true;
+        stats.translate(translation[0], translation[1], translation[2]);
 
         center = newCenter;
     }
@@ -127,9 +329,9 @@ public class ObjectInfo{
     public int[] avgColor()
     {
         if(avgColor == null){
-            avgColor = new int[sumColor.length];
+            avgColor = new int[3];
             for(int i=0; i<avgColor.length; i++){
-                avgColor[i] = sumColor[i]/points.size();
+                avgColor[i] = (int)(stats.colorSum[2-i]/numPoints);
             }
         }
         return avgColor;
@@ -145,60 +347,210 @@ public class ObjectInfo{
         avgColor = newColor;
     }
 
+    // Projected images are drawn into a buffer that is kept per thread and
+    // reused from one call to the next, growing as needed
+    private static class ImageBuffer
+    {
+        int[] xs = new int[256];
+        int[] ys = new int[256];
+        int[] rgb = new int[256];
+        int[] pixels = new int[64*64];
+        int[] pixel = new int[2];
+
+        void ensurePoints(int n)
+        {
+            if(xs.length < n){
+                int size = Math.max(n, xs.length*2);
+                xs = new int[size];
+                ys = new int[size];
+                rgb = new int[size];
+            }
+        }
+    }
+    private static ThreadLocal<ImageBuffer> imageBuffers = new ThreadLocal<ImageBuffer>() {
+        protected ImageBuffer initialValue()
+        {
+            return new ImageBuffer();
+        }
+    };
+    private static final DirectColorModel RGB_MODEL = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+    private static final int IMAGE_MARGIN = 5;
+
+    /** Project points into the camera image and draw them, each in its own
+     *  color, on a black image just big enough to hold them plus a margin.
+     *  @param projBBox if not null, is set to where the image lies in the
+     *         camera image
+     **/
     public static BufferedImage getImage(ArrayList<double[]> points, Rectangle projBBox){
-    	BufferedImage image;
-		int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
-		int minY = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
-		IBoltCamera camera = Bolt.getCamera();
-		for(double[] pt : points){
-			int[] pixel = camera.getPixel(pt);
-			if(pixel == null){
-				continue;
-			}
-			minX = (pixel[0] < minX ? pixel[0] : minX);
-			maxX = (pixel[0] > maxX ? pixel[0] : maxX);
-			minY = (pixel[1] < minY ? pixel[1] : minY);
-			maxY = (pixel[1] > maxY ? pixel[1] : maxY);
-		}
-		int margin = 5;
-		if(projBBox != null){
-			projBBox.setBounds(minX - margin, minY - margin,
-                               maxX - minX + 1 + margin*2,
-                               maxY - minY + 1 + margin*2);
-		}
-		image = new BufferedImage((maxX - minX + 1) + 2*margin,
-                                  (maxY - minY + 1) + 2*margin,
-                                  BufferedImage.TYPE_3BYTE_BGR);
-		for(int i = 0; i < points.size(); i++){
-			int[] pixel = Bolt.getCamera().getPixel(points.get(i));
-			if(pixel == null){
-				continue;
-			}
-			try{
-				Color c =  new Color((int)points.get(i)[3]);
-				Color rc = new Color(c.getBlue(), c.getGreen(), c.getRed());
-    			image.setRGB(pixel[0]+margin-minX,
-                             pixel[1]+margin-minY,
-                             rc.getRGB());
-			} catch (Exception e){
-                e.printStackTrace();
-			}
-		}
-    	return image;
+        BufferedImage img = getScratchImage(points, projBBox);
+        return copyImage(img);
+    }
+
+    /** Same as getImage(points, projBBox), but the image is drawn in a
+     *  buffer kept for the calling thread. Every scratch image made on a
+     *  thread shares its pixels with the others, so it is only valid until
+     *  the next call on that thread. For callers that are done with the
+     *  image before they make another, like the feature extractors.
+     **/
+    public static BufferedImage getScratchImage(ArrayList<double[]> points, Rectangle projBBox){
+        ImageBuffer buf = imageBuffers.get();
+        buf.ensurePoints(points.size());
+        IBoltCamera camera = Bolt.getCamera();
+        int[] pixel = buf.pixel;
+        int n = 0;
+        for(double[] pt : points){
+            if(!camera.getPixel(pt[0], pt[1], pt[2], pixel))
+                continue;
+            buf.xs[n] = pixel[0];
+            buf.ys[n] = pixel[1];
+            buf.rgb[n] = (int)pt[3];
+            n++;
+        }
+        return rasterize(buf, n, projBBox);
+    }
+
+    /** Project this object's points, read straight from its frame, into
+     *  the calling thread's buffer. Returns how many landed in the image. **/
+    private int project(ImageBuffer buf)
+    {
+        return project(buf, frame, indices, numPoints, Bolt.getCamera(), 1);
+    }
+
+    /** Project the first n of indices into buf, in pixels scaled down by
+     *  scale (1 for camera pixels). Returns how many landed in the image. **/
+    private static int project(ImageBuffer buf, PointCloudFrame frame, int[] indices, int n,
+                               IBoltCamera camera, double scale)
+    {
+        buf.ensurePoints(n);
+        int[] pixel = buf.pixel;
+        double inv = 1.0/scale;
+        int count = 0;
+        for(int i=0; i<n; i++){
+            int j = indices[i];
+            if(!camera.getPixel(frame.x[j], frame.y[j], frame.z[j], pixel))
+                continue;
+            if(scale == 1){
+                buf.xs[count] = pixel[0];
+                buf.ys[count] = pixel[1];
+            } else {
+                buf.xs[count] = (int)Math.floor(pixel[0]*inv);
+                buf.ys[count] = (int)Math.floor(pixel[1]*inv);
+            }
+            buf.rgb[count] = frame.rgb[j];
+            count++;
+        }
+        return count;
+    }
+
+    /** Bounds of the first n projected pixels of buf, plus the margin, as
+     *  {minX, minY, width, height} **/
+    private static int[] bounds(ImageBuffer buf, int n)
+    {
+        int minX = 0, maxX = -1, minY = 0, maxY = -1;
+        if(n > 0){
+            minX = maxX = buf.xs[0];
+            minY = maxY = buf.ys[0];
+            for(int i=1; i<n; i++){
+                int x = buf.xs[i], y = buf.ys[i];
+                if(x < minX) minX = x;
+                if(x > maxX) maxX = x;
+                if(y < minY) minY = y;
+                if(y > maxY) maxY = y;
+            }
+        }
+        return new int[]{minX - IMAGE_MARGIN, minY - IMAGE_MARGIN,
+                         maxX - minX + 1 + 2*IMAGE_MARGIN, maxY - minY + 1 + 2*IMAGE_MARGIN};
+    }
+
+    /** Draw the first n projected pixels of buf into its pixel buffer **/
+    private static BufferedImage rasterize(ImageBuffer buf, int n, Rectangle projBBox)
+    {
+        int[] b = bounds(buf, n);
+        int width = b[2], height = b[3];
+        if(projBBox != null)
+            projBBox.setBounds(b[0], b[1], width, height);
+
+        if(buf.pixels.length < width*height)
+            buf.pixels = new int[Math.max(width*height, buf.pixels.length*2)];
+        int[] pixels = buf.pixels;
+        Arrays.fill(pixels, 0, width*height, 0);
+
+        // Points are packed with red in the low byte
+        int ox = -b[0], oy = -b[1];
+        for(int i=0; i<n; i++){
+            int c = buf.rgb[i];
+            pixels[(buf.ys[i] + oy)*width + buf.xs[i] + ox] =
+                ((c & 0xff) << 16) | (c & 0xff00) | ((c >> 16) & 0xff);
+        }
+
+        DataBufferInt data = new DataBufferInt(pixels, width*height);
+        WritableRaster raster = Raster.createPackedRaster(data, width, height, width,
+                                                          RGB_MODEL.getMasks(), null);
+        return new BufferedImage(RGB_MODEL, raster, false, null);
+    }
+
+    /** A scratch image with pixels of its own **/
+    private static BufferedImage copyImage(BufferedImage img)
+    {
+        int width = img.getWidth(), height = img.getHeight();
+        int[] src = ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+        DataBufferInt data = new DataBufferInt(Arrays.copyOf(src, width*height), width*height);
+        WritableRaster raster = Raster.createPackedRaster(data, width, height, width,
+                                                          RGB_MODEL.getMasks(), null);
+        return new BufferedImage(RGB_MODEL, raster, false, null);
     }
 
+    /** Where this object lies in the camera image, from the bounds of its
+     *  projected points (the image itself is not drawn) **/
     public Rectangle getProjectedBBox(){
     	if(projBBox == null){
-    		getImage();
+    		ImageBuffer buf = imageBuffers.get();
+    		int[] b = bounds(buf, project(buf));
+    		projBBox = new Rectangle(b[0], b[1], b[2], b[3]);
     	}
     	return projBBox;
     }
 
+    /** This object projected into the camera image (see getImage(points,
+     *  projBBox)) **/
     public BufferedImage getImage(){
-    	if(image == null){
+    	return copyImage(getScratchImage());
+    }
+
+    /** This object projected into the camera image, drawn in the calling
+     *  thread's buffer. See getScratchImage(points, projBBox) for how long
+     *  the image stays valid. **/
+    public BufferedImage getScratchImage(){
+    	if(projBBox == null)
     		projBBox = new Rectangle();
-    		image = getImage(points, projBBox);
-    	}
-    	return image;
+    	ImageBuffer buf = imageBuffers.get();
+    	return rasterize(buf, project(buf), projBBox);
+    }
+
+    /** Same as getScratchImage(), but drawn from only the sampled indices
+     *  (all of the object's points if null) **/
+    public BufferedImage getScratchImage(int[] sample){
+    	if(sample == null)
+    		return getScratchImage();
+    	return getScratchImage(frame, sample, sample.length, numPoints, Bolt.getCamera());
+    }
+
+    /** The silhouette of a sample of k out of total points, drawn at the
+     *  resolution the sample can fill. Projected points cover the pixels of
+     *  an object about once each, so k of them cover one cell in every
+     *  total/k pixels. The image is drawn in cells sqrt(total/k) pixels on a
+     *  side, which keeps about one point per cell, so the silhouette has no
+     *  more holes than a full resolution one. The shape features are ratios
+     *  of lengths in the image, so they come out about the same, but
+     *  drawing the image and computing the features on it take time in
+     *  proportion to k rather than to total. The image is drawn in the
+     *  calling thread's buffer, as in getScratchImage(points, projBBox).
+     **/
+    static BufferedImage getScratchImage(PointCloudFrame frame, int[] sample, int k, int total,
+                                         IBoltCamera camera)
+    {
+    	double scale = (k > 0 && total > k) ? Math.sqrt(total/(double)k) : 1;
+    	ImageBuffer buf = imageBuffers.get();
+    	return rasterize(buf, project(buf, frame, sample, k, camera, scale), null);
     }
 }
@@ -247,7 +247,7 @@ class ObjectLabeler // implements LCMSubscriber
 
         // Get the feature vector
         int id = objRefs[currentObject];
-        ArrayList<double[]> points = segment.objects.get(id).points;
+        ArrayList<double[]> points = segment.objects.get(id).getPoints();
 
 
         // Write labels and pointclouds to file
@@ -325,7 +325,7 @@ class ObjectLabeler // implements LCMSubscriber
                                    (vd, new VzPoints.Style(cd, 1.0))));
         if(oi != null){
             VisVertexData square = new VisVertexData();
-            double[] bounds = SizeFeatureExtractor.boundingBox(oi.points);
+            double[] bounds = oi.stats.getBoundingBox();
             square.add(new double[]{bounds[0], bounds[1],0});
             square.add(new double[]{bounds[0], bounds[4],0});
             square.add(new double[]{bounds[3], bounds[4],0});
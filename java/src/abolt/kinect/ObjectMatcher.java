@@ -0,0 +1,215 @@
+package abolt.kinect;
+
+import java.util.*;
+
+/** Matches objects in one set to objects in another so that as many objects
+ *  as possible are paired, and among those pairings the total XY distance
+ *  between paired objects is smallest. Only pairs that are within a gate
+ *  distance of each other in XY and maxColor of each other in average color
+ *  are considered. Candidate pairs are found through a uniform XY grid with
+ *  cells as wide as the largest gate, and the assignment is solved with the
+ *  Hungarian algorithm over a compacted cost matrix.
+ **/
+public class ObjectMatcher
+{
+    final static double FORBIDDEN = 1e9;
+
+    /** @return for each object in a, the index of the object in b it was
+     *          matched to, or -1 if it was not matched **/
+    public static int[] match(ArrayList<ObjectInfo> a, ArrayList<ObjectInfo> b,
+                              double maxDist, double maxColor)
+    {
+        double[][] bCenters = new double[b.size()][];
+        double[] bGates = new double[b.size()];
+        for(int j=0; j<b.size(); j++){
+            bCenters[j] = b.get(j).getCenter();
+            bGates[j] = maxDist;
+        }
+        return match(a, b, bCenters, bGates, maxColor);
+    }
+
+    /** Same as match(a, b, maxDist, maxColor), but objects in b are looked
+     *  for at the given positions rather than their centers, each within its
+     *  own gate radius (e.g. a track's predicted position and uncertainty).
+     **/
+    public static int[] match(ArrayList<ObjectInfo> a, ArrayList<ObjectInfo> b,
+                              double[][] bCenters, double[] bGates, double maxColor)
+    {
+        int na = a.size(), nb = b.size();
+        int[] result = new int[na];
+        Arrays.fill(result, -1);
+        if(na == 0 || nb == 0)
+            return result;
+
+        double[] ax = new double[na], ay = new double[na];
+        int[][] ac = new int[na][];
+        for(int i=0; i<na; i++){
+            double[] c = a.get(i).getCenter();
+            ax[i] = c[0];
+            ay[i] = c[1];
+            ac[i] = a.get(i).avgColor();
+        }
+        double[] bx = new double[nb], by = new double[nb];
+        int[][] bc = new int[nb][];
+        double maxDist = 0;
+        for(int j=0; j<nb; j++){
+            bx[j] = bCenters[j][0];
+            by[j] = bCenters[j][1];
+            bc[j] = b.get(j).avgColor();
+            maxDist = Math.max(maxDist, bGates[j]);
+        }
+        if(maxDist <= 0)
+            return result;
+
+        // Bucket b into grid cells maxDist wide, so any partner of an object
+        // in a lies in the 3x3 cells around it
+        HashMap<Long, ArrayList<Integer>> grid = new HashMap<Long, ArrayList<Integer>>();
+        for(int j=0; j<nb; j++){
+            Long key = cell((long)Math.floor(bx[j]/maxDist), (long)Math.floor(by[j]/maxDist));
+            ArrayList<Integer> bucket = grid.get(key);
+            if(bucket == null){
+                bucket = new ArrayList<Integer>();
+                grid.put(key, bucket);
+            }
+            bucket.add(j);
+        }
+
+        // Gated pairs, with rows and columns compacted to objects that have
+        // at least one candidate
+        int[] rowOf = new int[na];
+        int[] colOf = new int[nb];
+        Arrays.fill(rowOf, -1);
+        Arrays.fill(colOf, -1);
+        int[] rowObj = new int[na];
+        int[] colObj = new int[nb];
+        int rows = 0, cols = 0;
+        ArrayList<int[]> pairs = new ArrayList<int[]>();
+        ArrayList<Double> pairCosts = new ArrayList<Double>();
+        for(int i=0; i<na; i++){
+            long cx = (long)Math.floor(ax[i]/maxDist);
+            long cy = (long)Math.floor(ay[i]/maxDist);
+            for(long dx=-1; dx<=1; dx++){
+                for(long dy=-1; dy<=1; dy++){
+                    ArrayList<Integer> bucket = grid.get(cell(cx+dx, cy+dy));
+                    if(bucket == null)
+                        continue;
+                    for(int j : bucket){
+                        double dist = Math.sqrt((ax[i]-bx[j])*(ax[i]-bx[j]) + (ay[i]-by[j])*(ay[i]-by[j]));
+                        if(dist >= bGates[j] || colorDistance(ac[i], bc[j]) >= maxColor)
+                            continue;
+                        if(rowOf[i] < 0){
+                            rowOf[i] = rows;
+                            rowObj[rows++] = i;
+                        }
+                        if(colOf[j] < 0){
+                            colOf[j] = cols;
+                            colObj[cols++] = j;
+                        }
+                        pairs.add(new int[]{rowOf[i], colOf[j]});
+                        pairCosts.add(dist);
+                    }
+                }
+            }
+        }
+        if(pairs.size() == 0)
+            return result;
+
+        // The Hungarian solver wants at least as many columns as rows
+        boolean transpose = rows > cols;
+        int n = transpose ? cols : rows;
+        int m = transpose ? rows : cols;
+        double[] cost = new double[n*m];
+        Arrays.fill(cost, FORBIDDEN);
+        for(int k=0; k<pairs.size(); k++){
+            int[] p = pairs.get(k);
+            int r = transpose ? p[1] : p[0];
+            int c = transpose ? p[0] : p[1];
+            cost[r*m + c] = pairCosts.get(k);
+        }
+
+        int[] assigned = hungarian(cost, n, m);
+        for(int r=0; r<n; r++){
+            int c = assigned[r];
+            if(c < 0 || cost[r*m + c] >= FORBIDDEN)
+                continue;
+            if(transpose)
+                result[rowObj[c]] = colObj[r];
+            else
+                result[rowObj[r]] = colObj[c];
+        }
+        return result;
+    }
+
+    private static Long cell(long cx, long cy)
+    {
+        return (cx << 32) ^ (cy & 0xffffffffL);
+    }
+
+    private static double colorDistance(int[] c1, int[] c2)
+    {
+        double sum = 0;
+        for(int i=0; i<c1.length; i++)
+            sum += (c1[i]-c2[i])*(c1[i]-c2[i]);
+        return Math.sqrt(sum);
+    }
+
+    /** Minimum cost assignment of n rows to m >= n columns of a row-major
+     ** cost matrix (shortest augmenting paths with potentials, O(n^2 m)).
+     ** @return the column assigned to each row **/
+    static int[] hungarian(double[] cost, int n, int m)
+    {
+        double[] u = new double[n+1];
+        double[] v = new double[m+1];
+        int[] p = new int[m+1];      // Row (1-based) matched to each column
+        int[] way = new int[m+1];
+        double[] minv = new double[m+1];
+        boolean[] used = new boolean[m+1];
+
+        for(int i=1; i<=n; i++){
+            p[0] = i;
+            int j0 = 0;
+            Arrays.fill(minv, Double.MAX_VALUE);
+            Arrays.fill(used, false);
+            do{
+                used[j0] = true;
+                int i0 = p[j0], j1 = 0;
+                double delta = Double.MAX_VALUE;
+                for(int j=1; j<=m; j++){
+                    if(used[j])
+                        continue;
+                    double cur = cost[(i0-1)*m + (j-1)] - u[i0] - v[j];
+                    if(cur < minv[j]){
+                        minv[j] = cur;
+                        way[j] = j0;
+                    }
+                    if(minv[j] < delta){
+                        delta = minv[j];
+                        j1 = j;
+                    }
+                }
+                for(int j=0; j<=m; j++){
+                    if(used[j]){
+                        u[p[j]] += delta;
+                        v[j] -= delta;
+                    }
+                    else
+                        minv[j] -= delta;
+                }
+                j0 = j1;
+            } while(p[j0] != 0);
+            do{
+                int j1 = way[j0];
+                p[j0] = p[j1];
+                j0 = j1;
+            } while(j0 != 0);
+        }
+
+        int[] assigned = new int[n];
+        Arrays.fill(assigned, -1);
+        for(int j=1; j<=m; j++){
+            if(p[j] != 0)
+                assigned[p[j]-1] = j-1;
+        }
+        return assigned;
+    }
+}
@@ -5,20 +5,29 @@ import java.util.*;
 import april.jmat.*;
 import april.jmat.geom.*;
 import april.util.*;
+import april.config.*;
 import abolt.classify.ColorFeatureExtractor;
 import abolt.arm.*;
 
 public class ObjectTracking
 {
     final double MAX_TRAVEL_DIST = 0.07;//.1;
+    final double MIN_GATE_DIST = 0.02;    // Smallest gate around a track's prediction
     final double MAX_COLOR_CHANGE = 60;//40;
     final int MAX_HISTORY = 10;
     final int MAX_JUST_DROPPED = 5;
 
+    // How much an object may change between frames and still keep the
+    // features and classifications computed for it earlier
+    private double cacheCountTol = .1;      // Fraction of its points
+    private double cacheBBoxTol = .01;      // Meters
+    private double cacheColorTol = 10;      // Mean color, 0-255
+
     public BoltArm arm; //XXXXXXXXXXXXXXXXXXXx
     private HashMap<Integer, ObjectInfo> lastFrame;
-    private HashMap<Integer, ObjectInfo> lostObjects;
-    private HashMap<Integer, Long> lostTime;
+    private HashMap<Integer, Integer> lastFrameKeys;  // repID -> key in lastFrame
+    private LostObjects lostObjects;
+    private HashMap<Integer, TrackFilter> filters;    // Motion model for each repID
     private ObjectInfo heldObject;
     private int justDroppedCount;
 
@@ -33,33 +42,37 @@ public class ObjectTracking
      *  short memory of lost objects. It attempts to reassign the correct id to
      *  objects from one frame to the next. Additionally, it keeps track of
      *  objects that have been picked up by the hand and tries to maintain their
-     *  ID when they are set down.
+     *  ID when they are set down. Arm events arrive on the LCM thread while
+     *  frames are tracked on the perception thread, so the public entry
+     *  points are synchronized.
      */
     public ObjectTracking()
     {
         arm = BoltArm.getSingleton();
         lastFrame = new HashMap<Integer, ObjectInfo>();
-        lostTime = new HashMap<Integer, Long>();
-        lostObjects = new HashMap<Integer, ObjectInfo>();
+        lastFrameKeys = new HashMap<Integer, Integer>();
+        lostObjects = new LostObjects(MAX_TRAVEL_DIST);
+        filters = new HashMap<Integer, TrackFilter>();
+    }
+
+    /** Read the feature cache tolerances from the "tracking" block of a config **/
+    synchronized public void loadConfig(Config config)
+    {
+        cacheCountTol = config.getDouble("tracking.cache_count_tol", cacheCountTol);
+        cacheBBoxTol = config.getDouble("tracking.cache_bbox_tol", cacheBBoxTol);
+        cacheColorTol = config.getDouble("tracking.cache_color_tol", cacheColorTol);
     }
 
     /** When the arm begins its "GRAB" state, note which repID is being picked up.
      *  @param id is the repID of the object the arm will try to grab.
      **/
-    public void armGrabbing(Integer id)
+    synchronized public void armGrabbing(Integer id)
     {
         if(armState != ArmState.GRABBING_OBJECT){
-            Integer hashID = -1;
-            Set objects = lastFrame.keySet();
-            for(Object obj : objects){
-                if(lastFrame.get((Integer)obj).repID == id){
-                    hashID = (Integer) obj;
-                    break;
-                }
-            }
-
-            heldObject = lastFrame.get(hashID);
+            Integer hashID = lastFrameKeys.get(id);
+            heldObject = (hashID == null) ? null : lastFrame.get(hashID);
             if(heldObject != null){
+                heldObject.detach();
                 armState = ArmState.GRABBING_OBJECT;
                 removeRepIDFromHistory(heldObject.repID);
             }
@@ -70,7 +83,7 @@ public class ObjectTracking
      *  grabbed object to the arm's goal destination.
      *  @param finalLocation is the goal drop location for the object.
      **/
-    public void armDropping(double[] finalLocation)
+    synchronized public void armDropping(double[] finalLocation)
     {
         if(heldObject != null){
             armState = ArmState.DROPPING_OBJECT;
@@ -82,7 +95,7 @@ public class ObjectTracking
      *  whether it was just grabbing an object (now it should be holding it) or
      *  if it was just dropping an object.
      **/
-    public void armWaiting()
+    synchronized public void armWaiting()
     {
         if(armState == ArmState.GRABBING_OBJECT
            || armState == ArmState.HOLDING_OBJECT){
@@ -106,7 +119,7 @@ public class ObjectTracking
     }
 
     /** When the arm hits a "FAIL" state then no object was picked up. **/
-    public void armFailed()
+    synchronized public void armFailed()
     {
         heldObject = null;
         armState = ArmState.WAITING;
@@ -123,34 +136,74 @@ public class ObjectTracking
         return Math.sqrt(dx*dx + dy*dy);
     }
 
+    /** The scene looked the same at utime as in the last frame tracked, so
+     *  its objects were still where they were. Their timestamps and motion
+     *  models are brought up to utime without tracking anything again. **/
+    synchronized public void touch(long utime)
+    {
+        HashMap<Integer, ObjectInfo> seen = new HashMap<Integer, ObjectInfo>();
+        for(Map.Entry<Integer, ObjectInfo> e : lastFrame.entrySet()){
+            ObjectInfo info = e.getValue();
+            // Objects are detached by now, so their frames are their own
+            if(info.frame != null)
+                info.frame.utime = utime;
+            if(info != heldObject)
+                seen.put(e.getKey(), info);
+        }
+        updateFilters(seen, utime);
+        lostObjects.expire(utime - MAX_HISTORY*1000000L);
+    }
+
+    /** Feed the centers of this frame's objects to their motion models and
+     ** drop the models of objects that are neither visible nor lost. **/
+    private void updateFilters(HashMap<Integer, ObjectInfo> currentFrame, long utime)
+    {
+        HashSet<Integer> live = new HashSet<Integer>();
+        for(ObjectInfo info : currentFrame.values()){
+            live.add(info.repID);
+            TrackFilter filter = filters.get(info.repID);
+            if(filter == null)
+                filters.put(info.repID, new TrackFilter(info.getCenter(), utime));
+            else
+                filter.update(info.getCenter(), utime);
+        }
+        if(heldObject != null)
+            live.add(heldObject.repID);
+        Iterator<Integer> it = filters.keySet().iterator();
+        while(it.hasNext()){
+            Integer repID = it.next();
+            if(!live.contains(repID) && lostObjects.get(repID) == null)
+                it.remove();
+        }
+    }
+
+    /** The objects stored under each of a list of keys **/
+    private static ArrayList<ObjectInfo> infos(HashMap<Integer, ObjectInfo> objects,
+                                               ArrayList<Integer> ids)
+    {
+        ArrayList<ObjectInfo> list = new ArrayList<ObjectInfo>(ids.size());
+        for(Integer id : ids)
+            list.add(objects.get(id));
+        return list;
+    }
+
     /** Remove items in history that have been there too long and add newly
      *  lost objects to the history of lost objects.
      *  @param unusedOld is a list of IDs of objects from the last frame not matched
      *         to an object in the current frame.
+     *  @param utime is the time of the current frame, on the same clock as
+     *         every other frame given to the tracker
      **/
-    public void updateHistory(HashMap<Integer, Integer> unusedOld)
+    public void updateHistory(HashMap<Integer, Integer> unusedOld, long utime)
     {
-        long currentTime = TimeUtil.utime();
-
-        // Increment how long each of the lost objects has been around and
-        // discard ones that are too old.
-        Set lost = lostObjects.keySet();
-        ArrayList<Integer> toRemove = new ArrayList<Integer>();
-        for(Object lostObj : lost){
-            double time  = (currentTime -lostTime.get((Integer) lostObj))/1000000;
-            if(time >= MAX_HISTORY)
-                toRemove.add((Integer) lostObj);
-        }
-        for(Integer id : toRemove){
-            lostObjects.remove(id);
-            lostTime.remove(id);
-        }
+        // Discard lost objects that are too old.
+        lostObjects.expire(utime - MAX_HISTORY*1000000L);
 
         // Add lost objects to history
-        Set old = unusedOld.keySet();
-        for(Object id : old){
-            lostObjects.put((Integer) id, lastFrame.get((Integer)id));
-            lostTime.put((Integer)id, currentTime);
+        for(Integer id : unusedOld.keySet()){
+            ObjectInfo lostObj = lastFrame.get(id);
+            lostObj.detach();
+            lostObjects.add(lostObj, utime);
         }
     }
 
@@ -162,32 +215,12 @@ public class ObjectTracking
     public void removeRepIDFromHistory(Integer id)
     {
         // Remove held object from the last frame
-        Set objects = lastFrame.keySet();
-        ArrayList<Integer> toRemove = new ArrayList<Integer>();
-        ObjectInfo last;
-        for(Object obj : objects){
-	    last = lastFrame.get((Integer)obj);
-            if(last != null && last.repID == id){
-                toRemove.add((Integer) obj);
-            }
-        }
-        for(Integer i : toRemove)
-            lastFrame.remove(i);
+        Integer key = lastFrameKeys.remove(id);
+        if(key != null)
+            lastFrame.remove(key);
 
         // Remove held object from the lost object list
-        objects = lostObjects.keySet();
-        toRemove = new ArrayList<Integer>();
-        ObjectInfo lost;
-        for(Object obj : objects){
-	    lost = lostObjects.get((Integer)id);
-            if(lost != null && lost.repID == id){
-                toRemove.add((Integer) obj);
-            }
-        }
-        for(Integer i : toRemove){
-            lostObjects.remove(i);
-            lostTime.remove(i);
-        }
+        lostObjects.remove(id);
     }
 
 
@@ -196,10 +229,23 @@ public class ObjectTracking
      *  then we want to compare to objects from previous frames (although this
      *  actually doesn't matter with Soar's current capabilities - 6/7/2012).
      *  We also want to check whether the arm is currently moving something,
-     *  and if it is we want to keep broadcasting that location. **/
-    public HashMap<Integer, ObjectInfo> newObjects(HashMap<Integer,
-                                                   ObjectInfo> currentFrame)
+     *  and if it is we want to keep broadcasting that location. Uses the
+     *  current time as the time the objects were seen. **/
+    public HashMap<Integer, ObjectInfo> newObjects(HashMap<Integer, ObjectInfo> currentFrame)
     {
+        return newObjects(currentFrame, 0);
+    }
+
+    /** Same as newObjects(currentFrame), for objects seen at utime. Motion
+     *  models and the ages of lost objects all run on this one clock, so
+     *  every frame given to the tracker should come from the same source.
+     *  @param utime is when the frame was captured, or 0 to use the current time
+     **/
+    synchronized public HashMap<Integer, ObjectInfo> newObjects(HashMap<Integer,
+                                                   ObjectInfo> currentFrame, long utime)
+    {
+        if(utime == 0)
+            utime = TimeUtil.utime();
         //System.out.println("==========="+armState+"============"+(heldObject!=null));
 
         if(armState == ArmState.JUST_DROPPED_OBJECT)
@@ -222,48 +268,29 @@ public class ObjectTracking
         // Keep track of which objects haven't been paired yet
         HashMap<Integer, Integer> unusedNew = new HashMap<Integer, Integer>();
         HashMap<Integer, Integer> unusedOld = new HashMap<Integer, Integer>();
-        Set currentIDs = currentFrame.keySet();
-        Set oldIDs = lastFrame.keySet();
-        for(Object idNew : currentIDs)
-            unusedNew.put((Integer)idNew, (Integer)idNew);
-        for(Object idOld : oldIDs )
-            unusedOld.put((Integer)idOld, (Integer) idOld);
-
-        // if we just dropped an object, Widen the range of the match area,
-        // try to match it before anything else.
+        for(Integer idNew : currentFrame.keySet())
+            unusedNew.put(idNew, idNew);
+        for(Integer idOld : lastFrame.keySet())
+            unusedOld.put(idOld, idOld);
+
+        // if we just dropped an object, try to match it before anything else.
         boolean unmatchedDroppedObject = false;
         if(heldObject != null ){
-            double[] pos = heldObject.getCenter();
-            //System.out.printf("%.4f, %.4f, %.4f\n", pos[0], pos[1], pos[2]);
-            double bestMatch = 100000;
-            int bestID = -1;
-
-            Set cNew = unusedNew.keySet();
-            for(Object currentID : cNew){
-                ObjectInfo objNew = currentFrame.get((Integer)currentID);
-                double dist = xydistance(objNew.getCenter(),
-                                         heldObject.getCenter());
-                double color = LinAlg.distance(objNew.avgColor(),
-                                               heldObject.avgColor());
-                if(dist < bestMatch
-                   && dist < MAX_TRAVEL_DIST
-                   && color < MAX_COLOR_CHANGE){
-                    bestID = (Integer)currentID;
-                    bestMatch = dist;
-                }
-            }
+            ArrayList<ObjectInfo> held = new ArrayList<ObjectInfo>();
+            held.add(heldObject);
+            ArrayList<Integer> newIDs = new ArrayList<Integer>(unusedNew.keySet());
+            int[] match = ObjectMatcher.match(held, infos(currentFrame, newIDs),
+                                              MAX_TRAVEL_DIST, MAX_COLOR_CHANGE);
 
             // Equate the best pair
-            if(bestID > -1){
+            if(match[0] >= 0){
+                int bestID = newIDs.get(match[0]);
                 unusedNew.remove(bestID);
                 ObjectInfo obj = currentFrame.get(bestID);
                 obj.equateObject(heldObject.repID, heldObject.avgColor());
-                Integer toRemove = -1;
-                for(Object id : unusedOld.keySet()){
-                    if(lastFrame.get((Integer)id).repID == heldObject.repID)
-                        toRemove = (Integer) id;
-                }
-                if(toRemove > -1)
+                filters.remove(heldObject.repID);   // It was carried; start its motion over
+                Integer toRemove = lastFrameKeys.get(heldObject.repID);
+                if(toRemove != null)
                     unusedOld.remove(toRemove);
 
                 removeRepIDFromHistory(heldObject.repID);
@@ -277,92 +304,71 @@ public class ObjectTracking
                 unmatchedDroppedObject = true;
         }
 
-        // Greedy search to match objects between current and last frame
-        ObjectInfo objNew, objOld;
-        for(int i=0; i<currentFrame.size(); i++){
-            Set cNew = unusedNew.keySet();
-            Set cOld = unusedOld.keySet();
-
-            double bestMatch = 10000;
-            int newID = -1;
-            int oldID = -1;
-
-            for(Object currentObj : cNew){
-                Integer currentID = (Integer) currentObj;
-                objNew = currentFrame.get(currentID);
-                for(Object oldObj : cOld){
-                    Integer pastID = (Integer) oldObj;
-                    objOld = lastFrame.get(pastID);
-                    if(objNew != null && objOld != null){
-                        double dist = xydistance(objNew.getCenter(),
-                                                 objOld.getCenter());
-                        double color = LinAlg.distance(objNew.avgColor(),
-                                                       objOld.avgColor());
-                        double score = color + dist;
-
-                        if(dist < bestMatch
-                           && dist < MAX_TRAVEL_DIST
-                           && color < MAX_COLOR_CHANGE){
-                            newID = currentID;
-                            oldID = pastID;
-                            bestMatch = dist;
-                        }
-                    }
-                }
+        // Match objects between current and last frame. Each old object is
+        // looked for where its motion model predicts it to be now, within a
+        // radius that shrinks as the model becomes more certain.
+        ArrayList<Integer> newIDs = new ArrayList<Integer>(unusedNew.keySet());
+        ArrayList<Integer> oldIDs = new ArrayList<Integer>(unusedOld.keySet());
+        ArrayList<ObjectInfo> oldObjs = infos(lastFrame, oldIDs);
+        double[][] predicted = new double[oldObjs.size()][];
+        double[] gates = new double[oldObjs.size()];
+        for(int i=0; i<oldObjs.size(); i++){
+            TrackFilter filter = filters.get(oldObjs.get(i).repID);
+            if(filter != null){
+                predicted[i] = filter.predict(utime);
+                gates[i] = filter.gateRadius(utime, MIN_GATE_DIST, MAX_TRAVEL_DIST);
             }
-
-            // Equate the best pair
-            if(newID > -1 && oldID > -1){
-                unusedNew.remove(newID);
-                unusedOld.remove(oldID);
-                ObjectInfo obj = currentFrame.get(newID);
-                obj.equateObject(lastFrame.get(oldID).repID, lastFrame.get(oldID).avgColor());
+            else{
+                predicted[i] = oldObjs.get(i).getCenter();
+                gates[i] = MAX_TRAVEL_DIST;
             }
         }
+        int[] match = ObjectMatcher.match(infos(currentFrame, newIDs), oldObjs,
+                                          predicted, gates, MAX_COLOR_CHANGE);
+        for(int i=0; i<match.length; i++){
+            if(match[i] < 0)
+                continue;
+            int newID = newIDs.get(i);
+            int oldID = oldIDs.get(match[i]);
+            unusedNew.remove(newID);
+            unusedOld.remove(oldID);
+            ObjectInfo obj = currentFrame.get(newID);
+            ObjectInfo old = lastFrame.get(oldID);
+            obj.equateObject(old.repID, old.avgColor());
+            obj.inheritCache(old, cacheCountTol, cacheBBoxTol, cacheColorTol);
+            obj.previous = old;
+            old.previous = null;    // Only ever look one frame back
+        }
 
-        // See if any of the unmatched objects match lost objects
+        // See if any of the unmatched objects match lost objects, otherwise
+        // give them a new repID
         if(unusedNew.size() > 0){
-            Set unusedSet = unusedNew.keySet();
-            Set lostSet = lostObjects.keySet();
-            for(Object unused : unusedSet){
-                Integer unusedID = (Integer) unused;
-                ObjectInfo unusedObj = currentFrame.get(unusedID);
-                double bestMatch = 10000;
-                Integer bestID = -1;
-                for(Object lost : lostSet){
-                    Integer lostID = (Integer) lost;
-                    ObjectInfo lostObj = lostObjects.get(lostID);
-                    if(lostObj != null && unusedObj != null){
-
-                        double dist = xydistance(unusedObj.getCenter(),
-                                                 lostObj.getCenter());
-                        double color = LinAlg.distance(unusedObj.avgColor(),
-                                                       lostObj.avgColor());
-                        double score = color/441 + dist;
-                        if(dist < bestMatch
-                           && dist < MAX_TRAVEL_DIST
-                           && color < MAX_COLOR_CHANGE){
-                            bestID = lostID;
-                            bestMatch = dist;
-                        }
-                    }
-                }
-
-                // Pair the new object to the best lost object, if one exists,
-                // otherwise give it a new repID
-                if(bestID > -1){
-                    unusedObj.equateObject(lostObjects.get(bestID).repID,
-                                           lostObjects.get(bestID).avgColor());
-                    lostObjects.remove(bestID);
-                    lostTime.remove(bestID);
+            newIDs = new ArrayList<Integer>(unusedNew.keySet());
+            ArrayList<ObjectInfo> unusedObjs = infos(currentFrame, newIDs);
+            LinkedHashSet<ObjectInfo> nearby = new LinkedHashSet<ObjectInfo>();
+            for(ObjectInfo obj : unusedObjs){
+                double[] c = obj.getCenter();
+                lostObjects.addNearby(c[0], c[1], nearby);
+            }
+            ArrayList<ObjectInfo> lost = new ArrayList<ObjectInfo>(nearby);
+            match = ObjectMatcher.match(unusedObjs, lost, MAX_TRAVEL_DIST, MAX_COLOR_CHANGE);
+            for(int i=0; i<match.length; i++){
+                ObjectInfo unusedObj = unusedObjs.get(i);
+                if(match[i] >= 0){
+                    ObjectInfo lostObj = lost.get(match[i]);
+                    unusedObj.equateObject(lostObj.repID, lostObj.avgColor());
+                    unusedObj.inheritCache(lostObj, cacheCountTol, cacheBBoxTol, cacheColorTol);
+                    filters.remove(unusedObj.repID);
+                    lostObjects.remove(lostObj.repID);
                 }
                 else
                     unusedObj.createRepID();
             }
         }
 
-        updateHistory(unusedOld);
+        updateHistory(unusedOld, utime);
         lastFrame = currentFrame;
+        updateFilters(currentFrame, utime);
 
         // Add in held object, if there is one.
         if((heldObject != null && armState == ArmState.HOLDING_OBJECT)
@@ -373,6 +379,11 @@ public class ObjectTracking
             currentFrame.put(heldObject.ufsID, heldObject);
         }
 
+        // currentFrame is now lastFrame; index it by repID
+        lastFrameKeys = new HashMap<Integer, Integer>();
+        for(Map.Entry<Integer, ObjectInfo> e : currentFrame.entrySet())
+            lastFrameKeys.put(e.getValue().repID, e.getKey());
+
 /*
         System.out.println("Current Objects:");
         for(ObjectInfo info : currentFrame.values()){
@@ -0,0 +1,56 @@
+package abolt.kinect;
+
+/** Union find over the pixels of a frame, with the same interface as
+ *  april.util.UnionFindSimple. Unlike UnionFindSimple it is safe for
+ *  several threads to connect nodes at once, as long as each thread only
+ *  touches its own disjoint range of nodes (e.g. one horizontal strip of
+ *  the image each). Sets that span ranges are then joined serially.
+ **/
+public class PixelUnionFind
+{
+    int[] parent;
+    int[] size;
+
+    public PixelUnionFind(int maxid)
+    {
+        parent = new int[maxid];
+        size = new int[maxid];
+        for (int i = 0; i < maxid; i++) {
+            parent[i] = i;
+            size[i] = 1;
+        }
+    }
+
+    public int getRepresentative(int id)
+    {
+        // Path halving
+        while (parent[id] != id) {
+            parent[id] = parent[parent[id]];
+            id = parent[id];
+        }
+        return id;
+    }
+
+    public int getSetSize(int id)
+    {
+        return size[getRepresentative(id)];
+    }
+
+    /** Join the sets containing a and b, returning the new representative **/
+    public int connectNodes(int a, int b)
+    {
+        int ra = getRepresentative(a);
+        int rb = getRepresentative(b);
+        if (ra == rb)
+            return ra;
+
+        if (size[ra] < size[rb]) {
+            int t = ra;
+            ra = rb;
+            rb = t;
+        }
+        parent[rb] = ra;
+        size[ra] += size[rb];
+        return ra;
+    }
+}
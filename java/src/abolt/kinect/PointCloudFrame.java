@@ -0,0 +1,243 @@
+package abolt.kinect;
+
+import java.util.*;
+
+/** A single frame of colored points stored as parallel primitive arrays
+ *  rather than one double[] per point. Point i lives at (x[i], y[i], z[i])
+ *  with packed color rgb[i] (same packing as getRegisteredXYZRGB), and is
+ *  only considered part of the cloud while its validity bit is set.
+ *
+ *  Frames are reference counted and recycled through a small pool so that
+ *  the ~300k point arrays are not reallocated for every kinect frame.
+ *  Whoever acquires a frame owns one reference; anything that wants to
+ *  hold on to it past that owner should retain() it and release() when
+ *  done. Frames that fall out of the pool are simply garbage collected.
+ **/
+public class PointCloudFrame
+{
+    final static int POOL_SIZE = 4;
+    private static ArrayList<PointCloudFrame> pool = new ArrayList<PointCloudFrame>();
+
+    public final int width, height;
+    public final float[] x, y, z;
+    public final int[] rgb;
+    private final long[] valid;
+
+    // HSB hue of each valid point's color, filled in by computeHues (or by
+    // whoever builds the frame). Only meaningful while hasHue is set.
+    public final float[] hue;
+    public boolean hasHue;
+
+    // World coordinates of each valid point, filled in by
+    // KUtils.computeWorldCoordinates. Only meaningful while hasWorld is set.
+    public final float[] wx, wy, wz;
+    public boolean hasWorld;
+
+    // Pixel of the kinect image that index 0 corresponds to, and how many
+    // kinect pixels apart neighboring indices are (for decimated frames)
+    public int originX, originY;
+    public int stride = 1;
+    public long utime;
+
+    private int refCount;
+    private boolean pooled;
+
+    private PointCloudFrame(int width, int height, boolean pooled)
+    {
+        this.width = width;
+        this.height = height;
+        this.pooled = pooled;
+        int size = width*height;
+        x = new float[size];
+        y = new float[size];
+        z = new float[size];
+        rgb = new int[size];
+        valid = new long[(size + 63) >> 6];
+        hue = new float[size];
+        wx = new float[size];
+        wy = new float[size];
+        wz = new float[size];
+    }
+
+    /** Get a cleared frame of the requested dimensions, reusing a pooled
+     *  frame if one is available. The caller owns the returned reference.
+     **/
+    public static PointCloudFrame acquire(int width, int height)
+    {
+        PointCloudFrame frame = null;
+        synchronized(pool){
+            for(int i=0; i<pool.size(); i++){
+                PointCloudFrame f = pool.get(i);
+                if(f.width == width && f.height == height){
+                    frame = pool.remove(i);
+                    break;
+                }
+            }
+        }
+        if(frame == null)
+            frame = new PointCloudFrame(width, height, true);
+
+        frame.clearValid();
+        frame.originX = 0;
+        frame.originY = 0;
+        frame.stride = 1;
+        frame.utime = 0;
+        frame.hasWorld = false;
+        frame.hasHue = false;
+        frame.refCount = 1;
+        return frame;
+    }
+
+    /** Build a frame that is never returned to the pool. Useful for small
+     *  clouds that outlive the frame they came from. **/
+    public static PointCloudFrame allocate(int width, int height)
+    {
+        PointCloudFrame frame = new PointCloudFrame(width, height, false);
+        frame.refCount = 1;
+        return frame;
+    }
+
+    /** Pack a list of (x, y, z, rgb) points into a frame laid out as a
+     *  width x height image. Points at the origin are marked invalid. **/
+    public static PointCloudFrame fromPoints(ArrayList<double[]> points, int width, int height)
+    {
+        assert(points.size() <= width*height);
+        PointCloudFrame frame = allocate(width, height);
+        for(int i=0; i<points.size(); i++){
+            double[] p = points.get(i);
+            frame.set(i, p[0], p[1], p[2], (int)p[3]);
+            if(p[0] < .0001 && p[1] < .0001 && p[2] < .0001 && p[3] < .0001)
+                frame.invalidate(i);
+        }
+        return frame;
+    }
+
+    /** Pack a list of (x, y, z, rgb) points into a single row frame. Every
+     *  point is valid. **/
+    public static PointCloudFrame fromPoints(ArrayList<double[]> points)
+    {
+        PointCloudFrame frame = allocate(Math.max(points.size(), 1), 1);
+        for(int i=0; i<points.size(); i++){
+            double[] p = points.get(i);
+            frame.set(i, p[0], p[1], p[2], (int)p[3]);
+        }
+        return frame;
+    }
+
+    public synchronized void retain()
+    {
+        assert(refCount > 0);
+        refCount++;
+    }
+
+    /** Drop a reference to this frame. Once nobody holds it, the frame
+     *  goes back to the pool (if there is room) to be reused. **/
+    public void release()
+    {
+        synchronized(this){
+            assert(refCount > 0);
+            if(--refCount > 0 || !pooled)
+                return;
+        }
+        synchronized(pool){
+            if(pool.size() < POOL_SIZE)
+                pool.add(this);
+        }
+    }
+
+    public int size()
+    {
+        return x.length;
+    }
+
+    public void set(int i, double px, double py, double pz, int color)
+    {
+        x[i] = (float)px;
+        y[i] = (float)py;
+        z[i] = (float)pz;
+        rgb[i] = color;
+        valid[i >> 6] |= (1L << i);
+    }
+
+    public boolean isValid(int i)
+    {
+        return (valid[i >> 6] & (1L << i)) != 0;
+    }
+
+    public void invalidate(int i)
+    {
+        valid[i >> 6] &= ~(1L << i);
+    }
+
+    public void clearValid()
+    {
+        Arrays.fill(valid, 0);
+    }
+
+    /** Number of points that are currently marked valid **/
+    public int numValid()
+    {
+        int n = 0;
+        for(int i=0; i<valid.length; i++)
+            n += Long.bitCount(valid[i]);
+        return n;
+    }
+
+    /** Fill in the hue channel for every valid point **/
+    public void computeHues()
+    {
+        for(int i=0; i<size(); i++){
+            if(isValid(i))
+                hue[i] = rgbToHue(rgb[i]);
+        }
+        hasHue = true;
+    }
+
+    /** The hue Color.RGBtoHSB would give for new Color(rgb), computed
+     *  without allocating anything. **/
+    public static float rgbToHue(int rgb)
+    {
+        int r = (rgb >> 16) & 0xff;
+        int g = (rgb >> 8) & 0xff;
+        int b = rgb & 0xff;
+
+        int cmax = (r > g) ? r : g;
+        if (b > cmax) cmax = b;
+        int cmin = (r < g) ? r : g;
+        if (b < cmin) cmin = b;
+        if (cmax == cmin)
+            return 0;
+
+        float redc = ((float) (cmax - r)) / ((float) (cmax - cmin));
+        float greenc = ((float) (cmax - g)) / ((float) (cmax - cmin));
+        float bluec = ((float) (cmax - b)) / ((float) (cmax - cmin));
+        float hue;
+        if (r == cmax)
+            hue = bluec - greenc;
+        else if (g == cmax)
+            hue = 2.0f + redc - bluec;
+        else
+            hue = 4.0f + greenc - redc;
+        hue = hue / 6.0f;
+        if (hue < 0)
+            hue = hue + 1.0f;
+        return hue;
+    }
+
+    /** Copy out point i as (x, y, z, rgb) **/
+    public double[] getPoint(int i)
+    {
+        return new double[]{x[i], y[i], z[i], rgb[i]};
+    }
+
+    /** Pixel column / row in the kinect image that index i came from **/
+    public int getPixelX(int i)
+    {
+        return originX + (i % width)*stride;
+    }
+
+    public int getPixelY(int i)
+    {
+        return originY + (i / width)*stride;
+    }
+}
@@ -0,0 +1,188 @@
+package abolt.kinect;
+
+/** Running statistics over the points of an object, accumulated as points
+ *  are added so that the object's center, bounding box, color averages and
+ *  spread can be read without going back over its points.
+ *
+ *  Positions are in kinect coordinates. World coordinate bounds are kept
+ *  as well, but only while every point added had world coordinates.
+ *  Color channels are indexed by where they sit in the packed color:
+ *  channel 0 is bits 0-7, channel 1 bits 8-15 and channel 2 bits 16-23.
+ *  HSV is looked up in HSVTable treating channel 0 as red, the same way
+ *  ColorFeatureExtractor does.
+ **/
+public class PointStats
+{
+    public int n = 0;
+
+    // Sums and sums of products of kinect coordinates
+    public double sx, sy, sz;
+    public double sxx, sxy, sxz, syy, syz, szz;
+    public double[] min = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+    public double[] max = new double[]{-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+    public boolean hasWorld = true;
+    public double[] worldMin = new double[]{Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+    public double[] worldMax = new double[]{-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+    public long[] colorSum = new long[3];
+    public long[] colorSumSq = new long[3];
+    public double[] hsvSum = new double[3];
+    public double[] hsvSumSq = new double[3];
+
+    /** Add point i of a frame **/
+    public void add(PointCloudFrame frame, int i)
+    {
+        double x = frame.x[i], y = frame.y[i], z = frame.z[i];
+        n++;
+        sx += x;
+        sy += y;
+        sz += z;
+        sxx += x*x;
+        sxy += x*y;
+        sxz += x*z;
+        syy += y*y;
+        syz += y*z;
+        szz += z*z;
+        if(x < min[0]) min[0] = x;
+        if(y < min[1]) min[1] = y;
+        if(z < min[2]) min[2] = z;
+        if(x > max[0]) max[0] = x;
+        if(y > max[1]) max[1] = y;
+        if(z > max[2]) max[2] = z;
+
+        if(frame.hasWorld){
+            double wx = frame.wx[i], wy = frame.wy[i], wz = frame.wz[i];
+            if(wx < worldMin[0]) worldMin[0] = wx;
+            if(wy < worldMin[1]) worldMin[1] = wy;
+            if(wz < worldMin[2]) worldMin[2] = wz;
+            if(wx > worldMax[0]) worldMax[0] = wx;
+            if(wy > worldMax[1]) worldMax[1] = wy;
+            if(wz > worldMax[2]) worldMax[2] = wz;
+        }
+        else
+            hasWorld = false;
+
+        addColor(frame.rgb[i]);
+    }
+
+    /** Add the color of a point to the color and HSV sums. Used on its own
+     ** when only color statistics are wanted, in which case the caller
+     ** has to keep n up to date. **/
+    public void addColor(int rgb)
+    {
+        int c0 = rgb & 0xff;
+        int c1 = (rgb >> 8) & 0xff;
+        int c2 = (rgb >> 16) & 0xff;
+        colorSum[0] += c0;
+        colorSum[1] += c1;
+        colorSum[2] += c2;
+        colorSumSq[0] += c0*c0;
+        colorSumSq[1] += c1*c1;
+        colorSumSq[2] += c2*c2;
+
+        int hs = HSVTable.lookup(c0, c1, c2);
+        float h = HSVTable.hue(hs);
+        float s = HSVTable.saturation(hs);
+        float v = HSVTable.value(c0, c1, c2);
+        hsvSum[0] += (double)h;
+        hsvSum[1] += (double)s;
+        hsvSum[2] += (double)v;
+        hsvSumSq[0] += (double)h*h;
+        hsvSumSq[1] += (double)s*s;
+        hsvSumSq[2] += (double)v*v;
+    }
+
+    /** Move every point by (dx, dy, dz) in kinect coordinates. World
+     ** bounds can not be moved along, so they are dropped. **/
+    public void translate(double dx, double dy, double dz)
+    {
+        sxx += 2*dx*sx + n*dx*dx;
+        syy += 2*dy*sy + n*dy*dy;
+        szz += 2*dz*sz + n*dz*dz;
+        sxy += dx*sy + dy*sx + n*dx*dy;
+        sxz += dx*sz + dz*sx + n*dx*dz;
+        syz += dy*sz + dz*sy + n*dy*dz;
+        sx += n*dx;
+        sy += n*dy;
+        sz += n*dz;
+        double[] d = new double[]{dx, dy, dz};
+        for(int i=0; i<3; i++){
+            min[i] += d[i];
+            max[i] += d[i];
+        }
+        hasWorld = false;
+    }
+
+    /** Mean position **/
+    public double[] getMean()
+    {
+        return new double[]{sx/n, sy/n, sz/n};
+    }
+
+    /** Population covariance of the positions **/
+    public double[][] getCovariance()
+    {
+        double mx = sx/n, my = sy/n, mz = sz/n;
+        double xy = sxy/n - mx*my;
+        double xz = sxz/n - mx*mz;
+        double yz = syz/n - my*mz;
+        return new double[][]{{sxx/n - mx*mx, xy, xz},
+                              {xy, syy/n - my*my, yz},
+                              {xz, yz, szz/n - mz*mz}};
+    }
+
+    /** [xmin, ymin, zmin, xmax, ymax, zmax] in kinect coordinates **/
+    public double[] getBoundingBox()
+    {
+        return new double[]{min[0], min[1], min[2], max[0], max[1], max[2]};
+    }
+
+    /** [xmin, ymin, zmin, xmax, ymax, zmax] in world coordinates, or null
+     ** if some point had no world coordinates **/
+    public double[] getWorldBoundingBox()
+    {
+        if(!hasWorld || n == 0)
+            return null;
+        return new double[]{worldMin[0], worldMin[1], worldMin[2],
+                            worldMax[0], worldMax[1], worldMax[2]};
+    }
+
+    /** Mean of each color channel, scaled to [0, 1] **/
+    public double[] getColorMean()
+    {
+        double[] mean = new double[3];
+        for(int i=0; i<3; i++)
+            mean[i] = colorSum[i]/(255.0*n);
+        return mean;
+    }
+
+    /** Variance of each color channel, in [0, 255] units **/
+    public double[] getColorVariance()
+    {
+        double[] var = new double[3];
+        for(int i=0; i<3; i++){
+            double mean = colorSum[i]/(double)n;
+            var[i] = colorSumSq[i]/(double)n - mean*mean;
+        }
+        return var;
+    }
+
+    public double[] getHSVMean()
+    {
+        double[] mean = new double[3];
+        for(int i=0; i<3; i++)
+            mean[i] = hsvSum[i]/n;
+        return mean;
+    }
+
+    public double[] getHSVVariance()
+    {
+        double[] var = new double[3];
+        for(int i=0; i<3; i++){
+            double mean = hsvSum[i]/n;
+            var[i] = hsvSumSq[i]/n - mean*mean;
+        }
+        return var;
+    }
+}
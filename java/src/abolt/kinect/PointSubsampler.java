@@ -0,0 +1,331 @@
+package abolt.kinect;
+
+import java.io.*;
+import java.util.*;
+
+import abolt.classify.*;
+
+/** Picks a subset of an object's points to draw the shape features' image
+ *  from (see ObjectInfo.getScratchImage(int[])), so what they cost per
+ *  object stops growing with how close the object is to the kinect.
+ *
+ *  VOXEL keeps the first point that lands in each cube of a grid with
+ *  voxelSize sides. Voxels are looked up in an open addressing table of
+ *  packed long keys, so nothing is boxed, but every point is still visited
+ *  once. It also evens out the density difference between the near and far
+ *  sides of an object. RESERVOIR keeps a uniform random maxPoints of them,
+ *  skipping ahead between picks (Li's algorithm L) so it only touches
+ *  about maxPoints*log(n/maxPoints) of them. With both a voxel size and
+ *  maxPoints, VOXEL is followed by a reservoir over the voxels it kept.
+ *
+ *  Random picks are seeded from the number of points so the same object
+ *  is sampled the same way from one frame to the next.
+ **/
+public class PointSubsampler
+{
+    public enum Mode { NONE, VOXEL, RESERVOIR }
+
+    final static int AXIS_BITS = 21;
+    final static long AXIS_MASK = (1L << AXIS_BITS) - 1;
+    final static long EMPTY = -1;   // Packed keys are never negative
+
+    Mode mode;
+    double voxelSize;
+    int maxPoints;
+
+    static class HashBuffer
+    {
+        long[] keys = new long[0];
+    }
+
+    private static ThreadLocal<HashBuffer> hashBuffer = new ThreadLocal<HashBuffer>() {
+        protected HashBuffer initialValue()
+        {
+            return new HashBuffer();
+        }
+    };
+
+    /** @param voxelSize side of a voxel in meters, used by VOXEL
+     ** @param maxPoints most points to keep, 0 for no limit (VOXEL only) **/
+    public PointSubsampler(Mode mode, double voxelSize, int maxPoints)
+    {
+        assert(mode != Mode.VOXEL || voxelSize > 0);
+        assert(mode != Mode.RESERVOIR || maxPoints > 0);
+        this.mode = mode;
+        this.voxelSize = voxelSize;
+        this.maxPoints = maxPoints;
+    }
+
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    public String toString()
+    {
+        switch(mode){
+            case VOXEL:
+                return String.format("voxel %.1f mm%s", voxelSize*1000,
+                                     (maxPoints > 0) ? ", max "+maxPoints : "");
+            case RESERVOIR:
+                return "reservoir of "+maxPoints;
+            default:
+                return "none";
+        }
+    }
+
+    /** Indices of the points to use out of the first n of indices. The
+     ** result is a new array exactly as long as the sample. **/
+    public int[] sample(PointCloudFrame frame, int[] indices, int n)
+    {
+        switch(mode){
+            case VOXEL:
+                int[] kept = voxel(frame, indices, n);
+                if(maxPoints > 0 && kept.length > maxPoints)
+                    return reservoir(kept, kept.length, maxPoints);
+                return kept;
+            case RESERVOIR:
+                return reservoir(indices, n, maxPoints);
+            default:
+                return Arrays.copyOf(indices, n);
+        }
+    }
+
+    private int[] voxel(PointCloudFrame frame, int[] indices, int n)
+    {
+        int capacity = Integer.highestOneBit(Math.max(2*n, 16) - 1) << 1;
+        HashBuffer buf = hashBuffer.get();
+        if(buf.keys.length < capacity)
+            buf.keys = new long[capacity];
+        long[] keys = buf.keys;
+        Arrays.fill(keys, 0, capacity, EMPTY);
+        int mask = capacity - 1;
+        int shift = 64 - Integer.numberOfTrailingZeros(capacity);
+
+        int[] kept = new int[n];
+        int count = 0;
+        double scale = 1.0/voxelSize;
+        for(int i=0; i<n; i++){
+            int j = indices[i];
+            long key = ((((long)Math.floor(frame.x[j]*scale)) & AXIS_MASK) << (2*AXIS_BITS)) |
+                       ((((long)Math.floor(frame.y[j]*scale)) & AXIS_MASK) << AXIS_BITS) |
+                       (((long)Math.floor(frame.z[j]*scale)) & AXIS_MASK);
+            int slot = (int)((key*0x9E3779B97F4A7C15L) >>> shift);
+            while(keys[slot] != EMPTY && keys[slot] != key)
+                slot = (slot + 1) & mask;
+            if(keys[slot] == EMPTY){
+                keys[slot] = key;
+                kept[count++] = j;
+            }
+        }
+        return Arrays.copyOf(kept, count);
+    }
+
+    private static int[] reservoir(int[] indices, int n, int k)
+    {
+        if(n <= k)
+            return Arrays.copyOf(indices, n);
+
+        int[] kept = Arrays.copyOf(indices, k);
+        long seed = n*0x9E3779B97F4A7C15L + 1;
+        seed = next(seed);
+        double w = Math.exp(Math.log(uniform(seed))/k);
+        long i = k - 1;
+        while(true){
+            seed = next(seed);
+            i += (long)Math.floor(Math.log(uniform(seed))/Math.log(1 - w)) + 1;
+            if(i >= n)
+                break;
+            seed = next(seed);
+            kept[(int)((seed >>> 33) % k)] = indices[(int)i];
+            seed = next(seed);
+            w *= Math.exp(Math.log(uniform(seed))/k);
+        }
+        return kept;
+    }
+
+    // xorshift64
+    private static long next(long s)
+    {
+        s ^= s << 13;
+        s ^= s >>> 7;
+        s ^= s << 17;
+        return s;
+    }
+
+    // In (0, 1), so it is always safe to take the log of
+    private static double uniform(long s)
+    {
+        return ((s >>> 11) + .5)/(1L << 53);
+    }
+
+    /** Reads the configuration for the shape features, e.g.
+     ** features.subsample = "voxel" (or "reservoir", "none"),
+     ** features.voxel_size = .005 (m) and features.max_points = 2000 **/
+    public static PointSubsampler fromConfig(april.config.Config config)
+    {
+        Mode mode = Mode.valueOf(config.getString("features.subsample", "none").toUpperCase());
+        double voxelSize = config.getDouble("features.voxel_size", .005);
+        int maxPoints = config.getInt("features.max_points", (mode == Mode.RESERVOIR) ? 2000 : 0);
+        return new PointSubsampler(mode, voxelSize, maxPoints);
+    }
+
+    /** Reports how far the shape features drawn from a subsample are from
+     ** those drawn from every point, and what each costs, for each object
+     ** in a .pts file. The error is given in units of the spread of each
+     ** feature over a training set, since that is what the classifier sees.
+     **
+     ** usage: PointSubsampler file.pts shape_features.dat **/
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length < 2){
+            System.err.println("usage: PointSubsampler <file.pts> <shape_features.dat>");
+            System.exit(1);
+        }
+
+        ObjectFileReader ofr = new ObjectFileReader(
+            new BufferedInputStream(new FileInputStream(args[0])));
+        double[] spread = featureSpread(args[1]);
+        IBoltCamera camera = new KinectProjection();
+
+        ArrayList<PointCloudFrame> frames = new ArrayList<PointCloudFrame>();
+        ArrayList<int[]> clouds = new ArrayList<int[]>();
+        ArrayList<ArrayList<Double>> exact = new ArrayList<ArrayList<Double>>();
+        int total = 0;
+        for(LabeledPointCloud lpc : ofr.getData()){
+            PointCloudFrame frame = PointCloudFrame.fromPoints(lpc.coloredPoints);
+            int[] all = new int[lpc.coloredPoints.size()];
+            int n = 0;
+            for(int i=0; i<all.length; i++){
+                double[] p = lpc.coloredPoints.get(i);
+                if(p[2] > 0)
+                    all[n++] = i;
+            }
+            if(n == 0)
+                continue;
+            all = Arrays.copyOf(all, n);
+            ArrayList<Double> features = PCA.getFeatures(
+                ObjectInfo.getScratchImage(frame, all, n, n, camera), 7);
+            if(features == null)
+                continue;
+            frames.add(frame);
+            clouds.add(all);
+            exact.add(features);
+            total += n;
+        }
+        int count = Math.max(clouds.size(), 1);
+
+        // Timed again now that the JIT has seen the code
+        long exactNanos = System.nanoTime();
+        for(int c=0; c<clouds.size(); c++){
+            int[] all = clouds.get(c);
+            PCA.getFeatures(ObjectInfo.getScratchImage(frames.get(c), all, all.length, all.length, camera), 7);
+        }
+        exactNanos = System.nanoTime() - exactNanos;
+        System.out.printf("%d objects of %d points on average, every point %.3f ms per object\n",
+                          clouds.size(), total/count, exactNanos/1e6/count);
+
+        PointSubsampler[] samplers = new PointSubsampler[]{
+            new PointSubsampler(Mode.VOXEL, .0025, 0),
+            new PointSubsampler(Mode.VOXEL, .005, 0),
+            new PointSubsampler(Mode.RESERVOIR, 0, 1000),
+            new PointSubsampler(Mode.RESERVOIR, 0, 500),
+            new PointSubsampler(Mode.RESERVOIR, 0, 250),
+            new PointSubsampler(Mode.RESERVOIR, 0, 100),
+        };
+        for(PointSubsampler sampler : samplers){
+            double sumErr = 0, maxErr = 0, kept = 0;
+            int features = 0;
+            long nanos = 0;
+            for(int c=0; c<clouds.size(); c++){
+                PointCloudFrame frame = frames.get(c);
+                int[] all = clouds.get(c);
+                long start = System.nanoTime();
+                int[] some = sampler.sample(frame, all, all.length);
+                ArrayList<Double> approx = PCA.getFeatures(
+                    ObjectInfo.getScratchImage(frame, some, some.length, all.length, camera), 7);
+                nanos += System.nanoTime() - start;
+                kept += some.length;
+                for(int f=0; f<exact.get(c).size(); f++){
+                    double v = (approx == null) ? 0 : approx.get(f);
+                    double err = Math.abs(v - exact.get(c).get(f))/spread[Math.min(f, spread.length-1)];
+                    sumErr += err;
+                    maxErr = Math.max(maxErr, err);
+                    features++;
+                }
+            }
+            System.out.printf("%-24s kept %5.1f%% of points, %.3f ms per object, error mean %.4f max %.4f spreads\n",
+                              sampler, 100*kept/Math.max(total, 1), nanos/1e6/count,
+                              sumErr/Math.max(features, 1), maxErr);
+        }
+    }
+
+    /** Projects kinect points with the kinect's intrinsics, for running the
+     ** shape features outside of Bolt **/
+    private static class KinectProjection implements IBoltCamera
+    {
+        public int[] getPixel(double[] cameraPt)
+        {
+            int[] pixel = new int[2];
+            getPixel(cameraPt[0], cameraPt[1], cameraPt[2], pixel);
+            return pixel;
+        }
+
+        public boolean getPixel(double x, double y, double z, int[] pixel)
+        {
+            pixel[0] = (int)Math.round(x*KUtils.Firx/z + KUtils.Cirx);
+            pixel[1] = (int)Math.round(y*KUtils.Firy/z + KUtils.Ciry);
+            return true;
+        }
+
+        public double[] getWorldCoords(double[] cameraPt)
+        {
+            return KUtils.getWorldCoordinates(cameraPt);
+        }
+
+        public double[][] getWorldAffine()
+        {
+            return KUtils.getWorldAffine();
+        }
+
+        public double getHeight(double[] xy)
+        {
+            return 0;
+        }
+    }
+
+    /** Standard deviation of each feature over a "[f1 f2 ...] {label}" file **/
+    private static double[] featureSpread(String filename) throws IOException
+    {
+        BufferedReader in = new BufferedReader(new FileReader(filename));
+        double[] sum = null, sumSq = null;
+        int count = 0;
+        String line;
+        while((line = in.readLine()) != null){
+            int start = line.indexOf('['), end = line.indexOf(']');
+            if(start < 0 || end < start)
+                continue;
+            String[] tokens = line.substring(start+1, end).trim().split("\\s+");
+            if(sum == null){
+                sum = new double[tokens.length];
+                sumSq = new double[tokens.length];
+            }
+            for(int f=0; f<sum.length && f<tokens.length; f++){
+                double v = Double.parseDouble(tokens[f]);
+                sum[f] += v;
+                sumSq[f] += v*v;
+            }
+            count++;
+        }
+        in.close();
+        if(sum == null)
+            throw new IOException("No [feature vector] lines in "+filename);
+
+        double[] spread = new double[sum.length];
+        for(int f=0; f<sum.length; f++){
+            double mean = sum[f]/count;
+            spread[f] = Math.sqrt(Math.max(sumSq[f]/count - mean*mean, 1e-12));
+        }
+        return spread;
+    }
+}
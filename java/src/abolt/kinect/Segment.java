@@ -2,10 +2,10 @@ package abolt.kinect;
 
 import java.awt.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import april.jmat.*;
 import april.jmat.geom.*;
-import april.util.UnionFindSimple;
 import april.vis.*;
 import april.config.*;
 
@@ -24,10 +24,13 @@ public class Segment
 
 
     final static double COLOR_THRESH = .25;//30;
-    final static double DISTANCE_THRESH = 0.01;
+    final static double DISTANCE_THRESH = 0.01;       // At full resolution
     final static double RANSAC_THRESH = .015;
-    final static double RANSAC_PERCENT = .2;
-    final static double MIN_OBJECT_SIZE = 100;
+    final static int RANSAC_SAMPLES = 4000;        // Points RANSAC hypotheses are scored on
+    final static int RANSAC_ITERATIONS = 2000;     // Upper bound on RANSAC hypotheses
+    final static int FLOOR_CHECK_INTERVAL = 30;    // Frames between floor re-validations
+    final static double FLOOR_CHECK_RATIO = .7;    // Re-estimate below this share of the original support
+    final static double MIN_OBJECT_SIZE = 100;        // At full resolution
     final static int MAX_HISTORY = 100;
 
     static BoltArm ba;
@@ -37,19 +40,44 @@ public class Segment
 
     int width, height;
 
+    // Thresholds scaled to the stride of the current frame; a frame
+    // decimated by s has 1/s^2 the points, spaced s times further apart
+    double minObjectSize = MIN_OBJECT_SIZE;
+    double distanceThresh = DISTANCE_THRESH;
+
     // Originally in data aggregator
     public HashMap<Integer, ObjectInfo> objects;           //map of all objects found in current frame to their data
     public HashMap<Integer, Integer> map;                  //map of object ID to color
     public ArrayList<double[]> coloredPoints;
     public ArrayList<double[]> points;
-    public UnionFindSimple ufs;
+    public PointCloudFrame frame;
+    public PixelUnionFind ufs;
     public ObjectTracking tracker;
     public VisWorld.Buffer vb;
+    ArmMask armMask = new ArmMask();
+
+    // Segmented frames stay alive while objects still refer to them. Only
+    // the current one is needed, since whoever hands objects on to other
+    // threads detaches them first (see KinectCamera.processFrame).
+    final static int FRAME_HISTORY = 1;
+    LinkedList<PointCloudFrame> frameHistory = new LinkedList<PointCloudFrame>();
+
+    // Number of horizontal strips labeled in parallel by unionFind (1 = serial)
+    int numStrips = 1;
+    static ForkJoinPool pool = null;
+
+    // When set, floor/arm removal and neighbor tests are only redone in
+    // tiles of the frame that changed (see BackgroundModel)
+    BackgroundModel background = null;
+    double[] backgroundFloor = null;
 
     static Random rand = new Random();
     static double[] t = new double[] { -0.0254, -0.00013, -0.01218 }; // Added .01 to t[2] here rather than below
-    double[] floorPlane;
+    volatile double[] floorPlane;
     boolean floorFound;
+    volatile double floorInlierFraction;   // Share of sampled points the floor fit when estimated
+    int framesSinceFloorCheck = 0;
+    volatile boolean floorCheckRunning = false;
     // Set up some "Random" colors to draw the segments
     static int[] colors = new int[]{0xff3300CC, 0xff9900CC, 0xffCC0099, 0xffCC0033,
                                     0xff0033CC, 0xff470AFF, 0xff7547FF, 0xffCC3300,
@@ -68,55 +96,110 @@ public class Segment
     }
 
 
+    /** Read segmentation parameters from the "segment" block of a config **/
+    public void loadConfig(Config config)
+    {
+        setStrips(config.getInt("segment.strips", 1));
+        KUtils.setDecimation(config.getInt("segment.decimation", 1),
+                             config.getString("segment.decimation_mode", "stride").equals("median"));
+        if(config.getBoolean("segment.background", false))
+            background = new BackgroundModel(config.getInt("segment.background_tile", 16),
+                                             config.getInt("segment.background_refresh", 30));
+        else
+            background = null;
+        tracker.loadConfig(config);
+    }
+
+    /** Set how many horizontal strips unionFind labels in parallel. Any
+     ** value below 2 labels the whole frame serially. **/
+    public void setStrips(int strips)
+    {
+        numStrips = Math.max(1, strips);
+    }
+
+    /** The background model in use, or null if it is turned off **/
+    public BackgroundModel getBackground()
+    {
+        return background;
+    }
+
+    static synchronized ForkJoinPool getPool()
+    {
+        if(pool == null)
+            pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        return pool;
+    }
+
     /** First segment the frame into objects and then get the features
-     ** for each object. **/
-    public void segmentFrame(ArrayList<double[]> currentPoints, int w, int h)
+     ** for each object. Invalid points in the frame are skipped, and points
+     ** on the floor or the arm are marked invalid. Segment keeps its own
+     ** reference to the frame for a few frames after this returns. **/
+    public void segmentFrame(PointCloudFrame currentFrame)
     {
 //        if(ARM_WIDTH == null)
             ARM_WIDTH = ba.getArmWidths();
 
-        width = w;
-        height = h;
-        points = currentPoints;
-        coloredPoints.clear();
+        width = currentFrame.width;
+        height = currentFrame.height;
+        minObjectSize = MIN_OBJECT_SIZE/(currentFrame.stride*currentFrame.stride);
+        distanceThresh = DISTANCE_THRESH*currentFrame.stride;
+        frame = currentFrame;
+        frame.retain();
+        frameHistory.addLast(frame);
+        while(frameHistory.size() > FRAME_HISTORY)
+            frameHistory.removeFirst().release();
+
+        if(background != null){
+            // Cached removal decisions are only good for the plane they used
+            if(floorPlane != backgroundFloor){
+                background.invalidate();
+                backgroundFloor = floorPlane;
+            }
+            background.update(frame);
+        }
+
         removeFloorAndArmPoints();
+        if(background != null){
+            for(int i=0; i<frame.size(); i++)
+                background.kept[i] = frame.isValid(i);
+        }
+        if(!frame.hasHue)
+            frame.computeHues();
         unionFind();
     }
 
+    /** Segment a w x h grid of (x, y, z, rgb) points. The points of every
+     ** object found end up in coloredPoints. **/
+    public void segmentFrame(ArrayList<double[]> currentPoints, int w, int h)
+    {
+        points = currentPoints;
+        PointCloudFrame f = PointCloudFrame.fromPoints(currentPoints, w, h);
+        segmentFrame(f);
+        f.release();
+
+        coloredPoints.clear();
+        for(ObjectInfo info : objects.values()){
+            for(int i=0; i<info.numPoints; i++)
+                coloredPoints.add(currentPoints.get(info.indices[i]));
+        }
+    }
+
     /** union find- for each pixel, compare with pixels around it and merge if
-     ** they are close enough. **/
+     ** they are close enough. With more than one strip, the strips are
+     ** labeled in parallel and then joined along their borders, which gives
+     ** the same sets as labeling serially. **/
     public void unionFind()
     {
-        ufs = new UnionFindSimple(points.size());
-        //create unions of pixels that are close together spatially
-        for(int y=0; y<height; y++){
-            for(int x=0; x<width; x++){
-                int loc1 = y*width + x;
-                double[] p1 = points.get(loc1);
-                // Look at neighboring pixels
-                if(!almostZero(p1)){
-                    int loc2 = y*width + x + 1;
-                    int loc3 = (y+1)*width + x;
-
-                    if (loc2>=0 && loc2<points.size() && (x+1)<width){
-                        double[] p2 = points.get(loc2);
-                        if(!almostZero(p2)
-                           && (dist(p1, p2) < DISTANCE_THRESH
-                               && colorDiff(p1[3], p2[3]) < COLOR_THRESH)){
-                            ufs.connectNodes(loc1, loc2);
-                        }
-                    }
-
-                    if (loc3>=0 && loc3<points.size() && (y+1)<height){
-                        double[] p2 = points.get(loc3);
-                        if(!almostZero(p2)
-                           && (dist(p1, p2) < DISTANCE_THRESH
-                               && colorDiff(p1[3], p2[3]) < COLOR_THRESH)){
-                            ufs.connectNodes(loc1, loc3);
-                        }
-                    }
-                }
-            }
+        int size = frame.size();
+        ufs = new PixelUnionFind(size);
+        int strips = Math.min(numStrips, height);
+        if(strips <= 1){
+            unionRows(0, height);
+        }
+        else{
+            getPool().invoke(new StripTask(0, strips, strips));
+            for(int s=1; s<strips; s++)
+                unionBorder(s*height/strips - 1);
         }
 
         //collect data on all the objects segmented by the union find algorithm in the previous step
@@ -125,27 +208,107 @@ public class Segment
         map = new HashMap<Integer, Integer>();
 
         // Make new objectInfos
-        for(int i = 0; i < points.size(); i++){
-            double[] point = points.get(i);
-            if(!almostZero(point) && ufs.getSetSize(i) > MIN_OBJECT_SIZE){
+        for(int i = 0; i < size; i++){
+            if(frame.isValid(i) && ufs.getSetSize(i) > minObjectSize){
 
                 int repID = ufs.getRepresentative(i);
                 Object repColor = map.get(repID);
                 if(repColor != null){
                     info = (ObjectInfo)objects.get(repID);
-                    info.update(point);
+                    info.update(i);
                 }
                 else{
                     int color = colors[i%colors.length];
                     map.put(repID, color);
-                    info = new ObjectInfo(color, repID, point);
+                    info = new ObjectInfo(color, repID, frame, i);
                     objects.put(repID, info);
                 }
-                Integer color = map.get(repID);
-                coloredPoints.add(point);
             }
         }
-        objects = tracker.newObjects(objects);
+        objects = tracker.newObjects(objects, frame.utime);
+    }
+
+    /** Labels a range of strips, splitting it in half until each task
+     ** has a single strip. **/
+    class StripTask extends RecursiveAction
+    {
+        int lo, hi, strips;
+
+        public StripTask(int lo, int hi, int strips)
+        {
+            this.lo = lo;
+            this.hi = hi;
+            this.strips = strips;
+        }
+
+        protected void compute()
+        {
+            if(hi - lo == 1){
+                unionRows(lo*height/strips, hi*height/strips);
+                return;
+            }
+            int mid = (lo + hi)/2;
+            invokeAll(new StripTask(lo, mid, strips), new StripTask(mid, hi, strips));
+        }
+    }
+
+    /** Connect each valid pixel in rows [y0, y1) with its right and lower
+     ** neighbors, never looking below row y1-1. Only touches nodes in those
+     ** rows, so disjoint row ranges can be labeled concurrently. **/
+    private void unionRows(int y0, int y1)
+    {
+        for(int y=y0; y<y1; y++){
+            for(int x=0; x<width; x++){
+                int loc1 = y*width + x;
+                // Look at neighboring pixels
+                if(frame.isValid(loc1)){
+                    if((x+1)<width && linked(loc1, loc1 + 1, BackgroundModel.RIGHT))
+                        ufs.connectNodes(loc1, loc1 + 1);
+                    if((y+1)<y1 && linked(loc1, loc1 + width, BackgroundModel.DOWN))
+                        ufs.connectNodes(loc1, loc1 + width);
+                }
+            }
+        }
+    }
+
+    /** Connect pixels in row y with the pixels directly below them **/
+    private void unionBorder(int y)
+    {
+        for(int x=0; x<width; x++){
+            int loc1 = y*width + x;
+            if(frame.isValid(loc1) && linked(loc1, loc1 + width, BackgroundModel.DOWN))
+                ufs.connectNodes(loc1, loc1 + width);
+        }
+    }
+
+    /** Whether a pixel should be joined with its neighbor in the given
+     ** direction. Where the scene has not changed since the last time the
+     ** pair was compared, the cached answer is used instead of similar().
+     ** Only edges[loc1] is written, so strips can call this concurrently. **/
+    private boolean linked(int loc1, int loc2, byte dir)
+    {
+        if(background == null)
+            return similar(loc1, loc2);
+        if(!frame.isValid(loc2))
+            return false;
+        if(background.unchanged(loc1) && background.unchanged(loc2))
+            return (background.edges[loc1] & dir) != 0;
+
+        boolean join = similar(loc1, loc2);
+        if(join)
+            background.edges[loc1] |= dir;
+        else
+            background.edges[loc1] &= ~dir;
+        return join;
+    }
+
+    /** Whether a neighboring pixel is close enough in space and color to be
+     ** part of the same object **/
+    private boolean similar(int loc1, int loc2)
+    {
+        return frame.isValid(loc2)
+            && dist(loc1, loc2) < distanceThresh
+            && colorDiff(loc1, loc2) < COLOR_THRESH;
     }
 
     private boolean almostBlack(int color)
@@ -161,18 +324,26 @@ public class Segment
     }
 
 
-    /** "Remove" points that are too close to the floor by setting them to
-     ** empty arrays.
+    /** "Remove" points that are too close to the floor by marking them
+     ** invalid in the frame.
      ** @return whether a plane was found and points were removed
      **/
     private boolean removeFloorAndArmPoints()
     {
-        // Only calculate the floor plane once XXX - maybe do multiple times and average?
+        // Calculate the floor plane once, then periodically make sure it
+        // still explains the scene (e.g. the camera may have been bumped)
         if(floorFound == false){
-            floorPlane = estimateFloor(2000);
+            FloorEstimator fe = FloorEstimator.sample(frame, RANSAC_SAMPLES, rand);
+            floorPlane = fe.estimate(RANSAC_ITERATIONS);
+            floorInlierFraction = fe.inlierFraction(floorPlane);
             floorFound = true;
         }
+        else if(++framesSinceFloorCheck >= FLOOR_CHECK_INTERVAL && !floorCheckRunning){
+            framesSinceFloorCheck = 0;
+            checkFloor(FloorEstimator.sample(frame, RANSAC_SAMPLES, rand));
+        }
 
+        double[] floorPlane = this.floorPlane;
         if (Arrays.equals(floorPlane, new double[4])) return false;
 
         // Figure out where each of the joints are
@@ -189,16 +360,8 @@ public class Segment
         }
 
 
-        // Set up segments of the arm
-        ArrayList<GLineSegment2D> armLines = new ArrayList<GLineSegment2D>();
-        for(int i=1; i<armPoints.size(); i++){
-            armLines.add(new GLineSegment2D(armPoints.get(i-1), armPoints.get(i)));
-            double[] p1 = armPoints.get(i-1);
-            double[] p2 = armPoints.get(i);
-
-//            System.out.printf("%d: (%.4f, %.4f, %.4f) --> (%.4f, %.4f, %.4f)   %.2f\n",
-//                              i, p1[0], p1[1], p1[2],p2[0], p2[1], p2[2], ARM_WIDTH.get(i-1));
-        }
+        // Rasterize the segments of the arm into the image
+        armMask.build(frame, armPoints, ARM_WIDTH);
 
         // Draw cylinders
         /*      xform = LinAlg.translate(0,0,ba.baseHeight);
@@ -240,49 +403,32 @@ public class Segment
 
         // Remove points that are either on the floor plane, below the plane,
         // or along the arm's position
-        for(int i=0; i<points.size(); i++){
-            double[] point = points.get(i);
-            double[] p = new double[]{point[0], point[1], point[2]};
+        KUtils.computeWorldCoordinates(frame);
+        double[] p = new double[3];
+        for(int i=0; i<frame.size(); i++){
+            if(!frame.isValid(i))
+                continue;
+            if(background != null && background.unchanged(i)){
+                if(!background.kept[i])
+                    frame.invalidate(i);
+                continue;
+            }
+            p[0] = frame.x[i];
+            p[1] = frame.y[i];
+            p[2] = frame.z[i];
             double distToPlane = pointToPlaneDist(p, floorPlane);
             if(distToPlane < RANSAC_THRESH ||
                distToPlane > ba.wristHeight ||
                belowPlane(p, floorPlane))// ||
                 //inArmRange(armLines, p))// ||//almostBlack((int)point[3]))
-                points.set(i, new double[4]);
-            else if(inArmRange(armLines, KUtils.getWorldCoordinates(p)))
-                points.set(i, new double[4]);
+                frame.invalidate(i);
+            else if(armMask.onArm(frame, i))
+                frame.invalidate(i);
         }
 
         return true;
     }
 
-    /** Determine whether a line is part of the arm, given a set of lines
-     *  representing the positions of the joints.**/
-    private boolean inArmRange(ArrayList<GLineSegment2D> armLines, double[] p)
-    {
-        assert(ARM_WIDTH.size() <= armLines.size());
-        boolean inArm = false;
-        for(int i=0; i<ARM_WIDTH.size(); i++){
-            if(armLines.get(i).distanceTo(p) < ARM_WIDTH.get(i)){
-                inArm = true;
-                break;
-            }
-        }
-
-//        if(inArm) System.out.print(".");
-//        else System.out.printf("(%.2f,%.2f,%.3f)",p[0], p[1], p[2]);
-        return inArm;
-    }
-
-    /** For determining whether a point is basically at the origin.**/
-    private boolean almostZero(double[] p)
-    {
-        if(p[0] < .0001 && p[1] < .0001 && p[2] < .0001 && p[3] < .0001)
-            return true;
-        return false;
-    }
-
-
     /** Check if a given point is on the other side of the ground plane as
      ** the camera is (this might mean we want to delete them).**/
     private boolean belowPlane(double[] p, double[] coef)
@@ -315,92 +461,67 @@ public class Segment
     }
 
     /** Get the difference in the z-direction of two pixels. **/
-    private double depthDiff(double[] p1, double[] p2)
+    private double depthDiff(int i1, int i2)
     {
-        return Math.abs(p1[2] - p2[2]);
+        return Math.abs(frame.z[i1] - frame.z[i2]);
     }
 
-    /** Get the difference in the z-direction of two pixels. **/
-    private double dist(double[] p1, double[] p2)
+    /** Get the distance between the points at two indices of the frame. **/
+    private double dist(int i1, int i2)
     {
-        double dx = p1[0]-p2[0];
-        double dy = p1[1]-p2[1];
-        double dz = p1[2]-p2[2];
+        double dx = frame.x[i1]-frame.x[i2];
+        double dy = frame.y[i1]-frame.y[i2];
+        double dz = frame.z[i1]-frame.z[i2];
         return Math.sqrt(dx*dx + dy*dy + dz*dz);
     }
 
-    /** Find the Euclidean distance between two colors. **/
-    private double colorDiff(double color1, double color2)
+    /** Find the difference in hue between the colors of two pixels. **/
+    private double colorDiff(int i1, int i2)
     {
-        Color c1 = new Color((int)color1);
-        Color c2 = new Color((int)color2);
-
         //int rDiff = c1.getRed() - c2.getRed();
         //int gDiff = c1.getGreen() - c2.getGreen();
         //int bDiff = c1.getBlue() - c2.getBlue();
         //double diff = Math.sqrt(rDiff*rDiff + bDiff*bDiff + gDiff*gDiff);
 
-        float[] hsv1 = Color.RGBtoHSB(c1.getRed(), c1.getGreen(), c1.getBlue(), null);
-        float[] hsv2 = Color.RGBtoHSB(c2.getRed(), c2.getGreen(), c2.getBlue(), null);
-        double diff = Math.abs((double)hsv1[0] - (double)hsv2[0]);
-
-        return diff;
+        return Math.abs((double)frame.hue[i1] - (double)frame.hue[i2]);
     }
 
     /** Estimate the floor plane using RANSAC algorithm (assumes that the major
         plane in the image is the "floor").
-        @param iterations is the number of iterations RANSAC is run for
+        @param iterations is the maximum number of iterations RANSAC is run for
         @return The characterizing coefficients for the floor plane
     **/
     public double[] estimateFloor(int iterations)
     {
-        if(points.size() == 0)
+        if(frame.size() == 0)
             return null;
+        return FloorEstimator.sample(frame, RANSAC_SAMPLES, rand).estimate(iterations);
+    }
 
-        int numPoints = points.size();
-        double bestPlane[] = new double[4];  // Parameters of plane equation
-        int bestFit = 0;                     // Most points that fit a guess plane
-        int numSamples = (int)Math.floor(numPoints*RANSAC_PERCENT);
-
-        // Perform specified number of iterations
-        for(int i=0; i<iterations; i++){
-            int numFit = 0;
-            // Choose three random points
-            double[] r1 = points.get(rand.nextInt(numPoints));
-            double[] r2 = points.get(rand.nextInt(numPoints));
-            double[] r3 = points.get(rand.nextInt(numPoints));
-
-            double[] p1 = new double[]{r1[0], r1[1], r1[2]};
-            double[] p2 = new double[]{r2[0], r2[1], r2[2]};
-            double[] p3 = new double[]{r3[0], r3[1], r3[2]};
-
-            // Derive plane through all three points
-            double[] p2p1 = LinAlg.subtract(p2, p1);
-            double[] p3p1 = LinAlg.subtract(p3, p1);
-            double[] pqr = LinAlg.crossProduct(p2p1, p3p1);
-            double s = -(pqr[0]*r1[0] + pqr[1]*r1[1] + pqr[2]*r1[2]);
-            double[] plane = new double[]{pqr[0], pqr[1], pqr[2], s};
-
-            // Check whether a sample of points is within a threshold of the plane.
-            for(int j = 0; j < numSamples; j++){
-                double[] p = points.get(rand.nextInt(numPoints));
-                if(Math.abs(p[0]) < t[2])
-                    continue;
-                if (pointToPlaneDist(new double[]{p[0], p[1], p[2]}, plane) < .005)
-                    numFit ++;
-            }
-
-            // Compare new plane against last best, saving it if better
-            if(numFit > bestFit && numFit > (numSamples/6)){
-                bestFit = numFit;
-                bestPlane = LinAlg.copy(plane);
+    /** Check in the background whether the floor plane still fits a sample
+        of the current frame, and re-estimate it from that sample if not.
+        Segmentation keeps using the old plane until the new one is ready.
+    **/
+    private void checkFloor(final FloorEstimator fe)
+    {
+        floorCheckRunning = true;
+        getPool().execute(new Runnable() {
+            public void run()
+            {
+                try{
+                    double fraction = fe.inlierFraction(floorPlane);
+                    if(fraction == 0 || fraction < FLOOR_CHECK_RATIO*floorInlierFraction){
+                        double[] plane = fe.estimate(RANSAC_ITERATIONS);
+                        if(!Arrays.equals(plane, new double[4])){
+                            floorInlierFraction = fe.inlierFraction(plane);
+                            floorPlane = plane;
+                        }
+                    }
+                }
+                finally{
+                    floorCheckRunning = false;
+                }
             }
-        }
-
-        double percent = bestFit / (double) numSamples;
-
-        if(bestFit == 0)
-            return new double[4];
-        return bestPlane;
+        });
     }
 }
@@ -122,10 +122,6 @@ public class SimKinect implements IBoltCamera{
 			return null;
 		}
 
-		ObjectInfo info = new ObjectInfo(color.getRGB(), obj.getID(), points.get(0));
-		info.repID = obj.getID();
-		info.createdFrom = obj;
-
 		int START_SIZE = 20;
 		int left = pixel[0] - START_SIZE/2;
 		if(left < -width/2){
@@ -173,9 +169,12 @@ public class SimKinect implements IBoltCamera{
 
 		for(double[] pt : points){
 			pt[3] = new Color(color.getBlue(), color.getGreen(), color.getRed()).getRGB();
-			info.update(pt);
 		}
 
+		ObjectInfo info = new ObjectInfo(color.getRGB(), obj.getID(), PointCloudFrame.fromPoints(points));
+		info.repID = obj.getID();
+		info.createdFrom = obj;
+
 		return info;
 	}
 
@@ -245,11 +244,39 @@ public class SimKinect implements IBoltCamera{
 		return new int[]{(int)Math.round(xPixel), (int)Math.round(yPixel)};
 	}
 
+	@Override
+	public boolean getPixel(double x, double y, double z, int[] pixel) {
+		double px = x - origin[0], py = y - origin[1], pz = z - origin[2];
+		double zproj = px*zAxis[0] + py*zAxis[1] + pz*zAxis[2];
+		double xproj = px*xAxis[0] + py*xAxis[1] + pz*xAxis[2];
+		double yproj = px*yAxis[0] + py*yAxis[1] + pz*yAxis[2];
+		if(zproj <= 0){
+			return false;
+		}
+		double xPixel = xproj * DIST_TO_SCREEN / zproj / PIXEL_SIZE;
+		double yPixel = yproj * DIST_TO_SCREEN / zproj / PIXEL_SIZE;
+		if(Math.abs(xPixel) > width/2 || Math.abs(yPixel) > height/2){
+			return false;
+		}
+		pixel[0] = (int)Math.round(xPixel);
+		pixel[1] = (int)Math.round(yPixel);
+		return true;
+	}
+
 	@Override
 	public double[] getWorldCoords(double[] cameraPt) {
 		return cameraPt;
 	}
 
+	private static final double[][] IDENTITY_AFFINE = new double[][]{{1,0,0,0},
+	                                                                  {0,1,0,0},
+	                                                                  {0,0,1,0}};
+
+	@Override
+	public double[][] getWorldAffine() {
+		return IDENTITY_AFFINE;
+	}
+
     @Override
     // XXX For simulation, we currently don't care about arm collisions
     public double getHeight(double[] xy)
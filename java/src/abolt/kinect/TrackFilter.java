@@ -0,0 +1,85 @@
+package abolt.kinect;
+
+/** Constant velocity Kalman filter on the XY position of a tracked object.
+ *  x and y are filtered independently, but since both axes see the same
+ *  noise and are measured together they share one 2x2 covariance over
+ *  (position, velocity).
+ **/
+public class TrackFilter
+{
+    final static double MEAS_VAR = .005*.005;   // Jitter of a segmented center [m^2]
+    final static double ACCEL_VAR = .5;         // White acceleration noise [m^2/s^3]
+    final static double INIT_VEL_VAR = .1*.1;   // Initial velocity uncertainty [m^2/s^2]
+    final static double MAX_DT = 1.0;           // Longest time we extrapolate over [s]
+    final static double GATE_SIGMAS = 3;
+
+    double x, y, vx, vy;
+    double p00, p01, p11;   // Covariance of (position, velocity) on each axis
+    long utime;
+
+    public TrackFilter(double[] center, long utime)
+    {
+        x = center[0];
+        y = center[1];
+        vx = 0;
+        vy = 0;
+        p00 = MEAS_VAR;
+        p01 = 0;
+        p11 = INIT_VEL_VAR;
+        this.utime = utime;
+    }
+
+    private double dt(long t)
+    {
+        double dt = (t - utime)/1000000.0;
+        return Math.max(0, Math.min(MAX_DT, dt));
+    }
+
+    /** Predicted XY position at time t **/
+    public double[] predict(long t)
+    {
+        double dt = dt(t);
+        return new double[]{x + vx*dt, y + vy*dt};
+    }
+
+    /** Radius around predict(t) a measurement is expected to fall in,
+     ** kept within [minGate, maxGate] **/
+    public double gateRadius(long t, double minGate, double maxGate)
+    {
+        double dt = dt(t);
+        double var = p00 + 2*dt*p01 + dt*dt*p11 + ACCEL_VAR*dt*dt*dt/3 + MEAS_VAR;
+        double r = GATE_SIGMAS*Math.sqrt(var);
+        return Math.max(minGate, Math.min(maxGate, r));
+    }
+
+    /** Fold in a measured center at time t **/
+    public void update(double[] center, long t)
+    {
+        // Predict
+        double dt = dt(t);
+        x += vx*dt;
+        y += vy*dt;
+        double q00 = ACCEL_VAR*dt*dt*dt/3;
+        double q01 = ACCEL_VAR*dt*dt/2;
+        double q11 = ACCEL_VAR*dt;
+        double n00 = p00 + 2*dt*p01 + dt*dt*p11 + q00;
+        double n01 = p01 + dt*p11 + q01;
+        double n11 = p11 + q11;
+
+        // Correct
+        double s = n00 + MEAS_VAR;
+        double k0 = n00/s;
+        double k1 = n01/s;
+        double ex = center[0] - x;
+        double ey = center[1] - y;
+        x += k0*ex;
+        y += k0*ey;
+        vx += k1*ex;
+        vy += k1*ey;
+        p00 = (1-k0)*n00;
+        p01 = (1-k0)*n01;
+        p11 = n11 - k1*n01;
+        if(t > utime)
+            utime = t;
+    }
+}
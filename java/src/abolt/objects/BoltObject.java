@@ -116,7 +116,9 @@ public class BoltObject{
 			//return;
 		}
 		this.info = info;
-		double[] bb = SizeFeatureExtractor.boundingBoxWorld(info.points);
+		double[] bb = info.stats.getWorldBoundingBox();
+		if(bb == null)
+			bb = SizeFeatureExtractor.boundingBoxWorld(info.frame, info.indices, info.numPoints);
         double[] min = new double[]{bb[0], bb[1], bb[2]};
         double[] max = new double[]{bb[3], bb[4], bb[5]};
         double[] xyzrpy = new double[]{0, 0, 0, 0, 0, 0};
@@ -135,7 +137,10 @@ public class BoltObject{
         LinAlg.minusEquals(max, center);
 
         shape = new SphereShape(maxDim);
-        Color color = ColorFeatureExtractor.getColorFromFeatures(info.getFeatures(FeatureCategory.COLOR));
+        // No color features if the extractor is disabled for being over budget
+        ArrayList<Double> colorFeatures = info.getFeatures(FeatureCategory.COLOR);
+        Color color = (colorFeatures == null) ? Color.gray :
+            ColorFeatureExtractor.getColorFromFeatures(colorFeatures);
         model = new VisChain(LinAlg.translate(center), LinAlg.scale(max[0] - min[0], max[1] - min[1], max[2] - min[2]),
                 new VzBox(new VzMesh.Style(color)));
         bbox[0] = min;
@@ -29,6 +29,10 @@ public class BoltObjectManager {
     }
 
 	public void updateObjects(HashMap<Integer, ObjectInfo> objectInfo) {
+		// Features are computed up front, outside the lock, so nobody
+		// reading the objects ends up computing them. Objects whose
+		// features are already in (e.g. from the kinect) are skipped.
+		FeatureStage.getSingleton().extract(objectInfo.values());
 		synchronized(objects){
 	        Set<Integer> objsToRemove = new HashSet<Integer>();
 	        for (Integer id : objects.keySet()) {